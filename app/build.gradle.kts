@@ -218,6 +218,8 @@ dependencies {
     implementation("org.jetbrains.kotlinx:kotlinx-coroutines-android:1.6.4")
     implementation("org.jetbrains.kotlinx:kotlinx-serialization-cbor:1.5.0")
     implementation("org.jsoup:jsoup:1.15.4")
+
+    testImplementation("junit:junit:4.13.2")
 }
 
 configurations.all {
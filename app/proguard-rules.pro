@@ -6,6 +6,9 @@
     native <methods>;
 }
 
+# Called from native
+-keepclassmembers interface com.hippo.UriArchiveAccessor$ExtractCallback { *; }
+
 # https://issuetracker.google.com/issues/190382641
 -keepclassmembers class kotlin.SafePublicationLazyImpl {
     java.lang.Object _value;
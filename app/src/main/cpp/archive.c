@@ -18,17 +18,23 @@
  */
 
 #include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
 #include <errno.h>
+#include <limits.h>
 #include <pthread.h>
 #include <sys/mman.h>
+#include <sys/types.h>
+#include <unistd.h>
 
 #include <jni.h>
 #include <android/log.h>
 
 #include <archive.h>
 #include <archive_entry.h>
+#include <zlib.h>
 
 #define LOG_TAG "libarchive_wrapper"
 
@@ -46,31 +52,50 @@ typedef struct {
     const char *filename;
     int index;
     size_t size;
+    // Zip entries readable without libarchive, offset is -1 for others
+    int64_t offset;
+    uint64_t csize;
+    int method;
 } entry;
 
-pthread_mutex_t ctx_lock;
-static archive_ctx **ctx_pool;
 #define CTX_POOL_SIZE 20
 
-static void *mempool = NULL;
-static size_t *mempoolofs = NULL;
+// An extracted entry, kept in the LRU list while no ByteBuffer is handed out
+typedef struct {
+    void *addr; // NULL if not extracted
+    int refs;
+    int prev;
+    int next;
+} pool_slot;
 
-#define PAGE_ALIGN(x) ((x + ~PAGE_MASK) & PAGE_MASK)
+// Everything about one opened archive, handed to Kotlin as a jlong
+typedef struct {
+    void *addr;
+    size_t size;
+    entry *entries;
+    size_t entry_count;
+    pthread_mutex_t ctx_lock;
+    archive_ctx *ctx_pool[CTX_POOL_SIZE];
+    char *passwd;
+    bool need_encrypt;
+    int format;
+    // Extracted entries, bounded by pool_budget bytes, guarded by pool_lock
+    pthread_mutex_t pool_lock;
+    pool_slot *slots;
+    int lru_head; // Most recently used idle slot, -1 if none
+    int lru_tail;
+    size_t pool_bytes;
+    size_t pool_budget;
+    uint64_t hits;
+    uint64_t misses;
+    uint64_t evictions;
+} archive_handle;
 
-#define MEMPOOL_ADDR_BY_SORTED_IDX(x) (mempool + (index ? mempoolofs[index - 1] : 0))
-#define MEMPOOL_SIZE (mempoolofs[entryCount - 1])
-#define MEMPOOL_ENTITY_SIZE(x) PAGE_ALIGN(entries[x].size)
+#define PAGE_ALIGN(x) ((x + ~PAGE_MASK) & PAGE_MASK)
 
 #define PROT_RW (PROT_WRITE | PROT_READ)
 #define MAP_ANON_POOL (MAP_ANONYMOUS | MAP_NORESERVE | MAP_PRIVATE | MAP_UNINITIALIZED)
 
-static bool need_encrypt = false;
-static char *passwd = NULL;
-static void *archiveAddr = NULL;
-static size_t archiveSize = 0;
-static entry *entries = NULL;
-static size_t entryCount = 0;
-
 const char supportExt[9][6] = {
         "jpeg",
         "jpg",
@@ -83,6 +108,11 @@ const char supportExt[9][6] = {
         "heif"
 };
 
+static inline size_t pool_entity_size(archive_handle *h, int index) {
+    size_t size = PAGE_ALIGN(h->entries[index].size);
+    return size ? size : PAGE_SIZE;
+}
+
 static inline int filename_is_playable_file(const char *name) {
     const char *dotptr = strrchr(name, '.');
     if (!dotptr++)
@@ -100,73 +130,347 @@ static inline int compare_entries(const void *a, const void *b) {
     return strnatcmp(fa, fb);
 }
 
-static long archive_map_entries_index(archive_ctx *ctx) {
-    long count = 0;
+#define ENTRIES_INITIAL_CAPACITY 64
+
+// Build the sorted entry table in one pass over headers, growing it as needed
+static bool archive_index_entries(archive_handle *h, archive_ctx *ctx) {
+    size_t capacity = 0;
+    size_t count = 0;
     while (archive_read_next_header(ctx->arc, &ctx->entry) == ARCHIVE_OK) {
         const char *name = archive_entry_pathname(ctx->entry);
-        if (filename_is_playable_file(name)) {
-            entries[count].filename = strdup(name);
-            entries[count].index = count;
-            entries[count].size = archive_entry_size(ctx->entry);
-            count++;
+        if (!filename_is_playable_file(name))
+            continue;
+        if (count == capacity) {
+            capacity = capacity ? capacity * 2 : ENTRIES_INITIAL_CAPACITY;
+            entry *entries = realloc(h->entries, capacity * sizeof(entry));
+            if (!entries) {
+                LOGE("%s", "Mem alloc failed");
+                return false;
+            }
+            h->entries = entries;
         }
+        h->entries[count].filename = strdup(name);
+        h->entries[count].index = count;
+        h->entries[count].size = archive_entry_size(ctx->entry);
+        h->entries[count].offset = -1;
+        h->entry_count = ++count;
     }
-    if (!count)
+    if (!count) {
         LOGE("%s", archive_error_string(ctx->arc));
-    qsort(entries, entryCount, sizeof(entry), compare_entries);
-    return count;
+        return false;
+    }
+    qsort(h->entries, h->entry_count, sizeof(entry), compare_entries);
+    return true;
 }
 
-static bool archive_prealloc_mempool() {
-    mempoolofs = calloc(entryCount, sizeof(size_t));
-    for (int i = 0; i < entryCount; ++i) {
-        if (!i)
-            mempoolofs[i] = PAGE_ALIGN(entries[i].size);
-        else
-            mempoolofs[i] = PAGE_ALIGN(entries[i].size) + mempoolofs[i - 1];
+// Entry table cache, all fields in native byte order:
+// header: magic, version, entry count, need_encrypt, format
+// entry: index, size, zip local header offset, compressed size, method, name length,
+//        name without NUL
+#define INDEX_CACHE_MAGIC 0x49414845 // "EHAI"
+#define INDEX_CACHE_VERSION 2
+
+static bool index_cache_read(archive_handle *h, const char *path) {
+    FILE *fp = fopen(path, "rb");
+    if (!fp)
+        return false;
+    uint32_t header[5];
+    size_t count = 0;
+    bool ok = fread(header, sizeof(header), 1, fp) == 1 && header[0] == INDEX_CACHE_MAGIC &&
+              header[1] == INDEX_CACHE_VERSION && header[2] > 0;
+    if (ok) {
+        h->entries = calloc(header[2], sizeof(entry));
+        ok = h->entries != NULL;
     }
-    mempool = mmap(0, MEMPOOL_SIZE, PROT_RW, MAP_ANON_POOL, -1, 0);
-    if (mempool == MAP_FAILED) {
-        LOGE("%s%s", "mmap failed with error ", strerror(errno));
+    for (; ok && count < header[2]; count++) {
+        uint32_t index;
+        uint64_t size;
+        int64_t offset;
+        uint64_t csize;
+        int32_t method;
+        uint16_t len;
+        char *name;
+        ok = fread(&index, sizeof(index), 1, fp) == 1 && fread(&size, sizeof(size), 1, fp) == 1 &&
+             fread(&offset, sizeof(offset), 1, fp) == 1 && fread(&csize, sizeof(csize), 1, fp) == 1 &&
+             fread(&method, sizeof(method), 1, fp) == 1 &&
+             fread(&len, sizeof(len), 1, fp) == 1 && (name = malloc(len + 1)) != NULL;
+        if (!ok)
+            break;
+        ok = fread(name, 1, len, fp) == len;
+        name[len] = 0;
+        h->entries[count].filename = name;
+        h->entries[count].index = index;
+        h->entries[count].size = size;
+        h->entries[count].offset = offset;
+        h->entries[count].csize = csize;
+        h->entries[count].method = method;
+    }
+    // Count what is allocated, archive_handle_free releases them if it's broken
+    h->entry_count = count;
+    fclose(fp);
+    if (ok) {
+        h->need_encrypt = header[3];
+        h->format = header[4];
+    } else {
+        LOGW("%s%s", "Drop broken index cache ", path);
+        remove(path);
+    }
+    return ok;
+}
+
+static void index_cache_write(archive_handle *h, const char *path) {
+    char tmp[PATH_MAX];
+    snprintf(tmp, sizeof(tmp), "%s.tmp", path);
+    FILE *fp = fopen(tmp, "wb");
+    if (!fp) {
+        LOGE("%s%s", "Can't write index cache:", strerror(errno));
+        return;
+    }
+    uint32_t header[5] = {INDEX_CACHE_MAGIC, INDEX_CACHE_VERSION, h->entry_count,
+                          h->need_encrypt, h->format};
+    bool ok = fwrite(header, sizeof(header), 1, fp) == 1;
+    for (int i = 0; ok && i < h->entry_count; i++) {
+        uint32_t index = h->entries[i].index;
+        uint64_t size = h->entries[i].size;
+        int64_t offset = h->entries[i].offset;
+        uint64_t csize = h->entries[i].csize;
+        int32_t method = h->entries[i].method;
+        uint16_t len = strlen(h->entries[i].filename);
+        ok = fwrite(&index, sizeof(index), 1, fp) == 1 && fwrite(&size, sizeof(size), 1, fp) == 1 &&
+             fwrite(&offset, sizeof(offset), 1, fp) == 1 && fwrite(&csize, sizeof(csize), 1, fp) == 1 &&
+             fwrite(&method, sizeof(method), 1, fp) == 1 &&
+             fwrite(&len, sizeof(len), 1, fp) == 1 &&
+             fwrite(h->entries[i].filename, 1, len, fp) == len;
+    }
+    ok = !fclose(fp) && ok;
+    if (!ok || rename(tmp, path)) {
+        LOGE("%s%s", "Can't write index cache:", strerror(errno));
+        remove(tmp);
+    }
+}
+
+#define ZIP_EOCD_SIG 0x06054b50
+#define ZIP_CDH_SIG 0x02014b50
+#define ZIP_LFH_SIG 0x04034b50
+#define ZIP_EOCD_SIZE 22
+#define ZIP_CDH_SIZE 46
+#define ZIP_LFH_SIZE 30
+#define ZIP_METHOD_STORE 0
+#define ZIP_METHOD_DEFLATE 8
+
+static inline uint16_t zip_u16(const uint8_t *p) {
+    return p[0] | p[1] << 8;
+}
+
+static inline uint32_t zip_u32(const uint8_t *p) {
+    return zip_u16(p) | (uint32_t) zip_u16(p + 2) << 16;
+}
+
+static int compare_entry_name(const void *key, const void *e) {
+    return strnatcmp(key, ((entry *) e)->filename);
+}
+
+// Record where stored and deflated zip entries are, from the central directory of the mapping,
+// so they can be read without walking headers. Zip64 and encrypted entries are left to libarchive.
+static void zip_map_central_directory(archive_handle *h) {
+    const uint8_t *base = h->addr;
+    if (h->size < ZIP_EOCD_SIZE)
+        return;
+    const uint8_t *eocd = NULL;
+    const uint8_t *p = base + h->size - ZIP_EOCD_SIZE;
+    const uint8_t *min = h->size > ZIP_EOCD_SIZE + UINT16_MAX ? p - UINT16_MAX : base;
+    for (; p >= min; p--) {
+        if (zip_u32(p) == ZIP_EOCD_SIG) {
+            eocd = p;
+            break;
+        }
+    }
+    if (!eocd)
+        return;
+    uint16_t count = zip_u16(eocd + 10);
+    uint32_t cd_size = zip_u32(eocd + 12);
+    uint32_t cd_offset = zip_u32(eocd + 16);
+    if (cd_offset == UINT32_MAX || (uint64_t) cd_offset + cd_size > h->size)
+        return;
+    p = base + cd_offset;
+    const uint8_t *end = p + cd_size;
+    int mapped = 0;
+    for (int i = 0; i < count && p + ZIP_CDH_SIZE <= end && zip_u32(p) == ZIP_CDH_SIG; i++) {
+        uint16_t flags = zip_u16(p + 8);
+        uint16_t method = zip_u16(p + 10);
+        uint32_t csize = zip_u32(p + 20);
+        uint32_t size = zip_u32(p + 24);
+        uint16_t name_len = zip_u16(p + 28);
+        uint16_t extra_len = zip_u16(p + 30);
+        uint16_t comment_len = zip_u16(p + 32);
+        uint32_t offset = zip_u32(p + 42);
+        const uint8_t *name = p + ZIP_CDH_SIZE;
+        p = name + name_len + extra_len + comment_len;
+        if (p > end)
+            break;
+        if (flags & 1 || (method != ZIP_METHOD_STORE && method != ZIP_METHOD_DEFLATE))
+            continue;
+        if (csize == UINT32_MAX || size == UINT32_MAX || offset == UINT32_MAX)
+            continue;
+        char key[name_len + 1];
+        memcpy(key, name, name_len);
+        key[name_len] = 0;
+        entry *e = bsearch(key, h->entries, h->entry_count, sizeof(entry), compare_entry_name);
+        if (!e || strcmp(key, e->filename) || e->size != size)
+            continue;
+        e->offset = offset;
+        e->csize = csize;
+        e->method = method;
+        mapped++;
+    }
+    LOGI("%s%d%s", "Mapped ", mapped, " zip entries for random access");
+}
+
+// Locate the data of a mapped zip entry, NULL if the local header doesn't fit
+static const uint8_t *zip_entry_data(archive_handle *h, entry *e) {
+    const uint8_t *base = h->addr;
+    if (e->offset + ZIP_LFH_SIZE > h->size)
+        return NULL;
+    const uint8_t *lfh = base + e->offset;
+    if (zip_u32(lfh) != ZIP_LFH_SIG)
+        return NULL;
+    uint64_t data = e->offset + ZIP_LFH_SIZE + zip_u16(lfh + 26) + zip_u16(lfh + 28);
+    if (data + e->csize > h->size)
+        return NULL;
+    return base + data;
+}
+
+// Extract a mapped zip entry into dst of e->size bytes, return bytes written or -1
+static ssize_t zip_extract_entry(archive_handle *h, entry *e, void *dst) {
+    const uint8_t *src = zip_entry_data(h, e);
+    if (!src)
+        return -1;
+    if (e->method == ZIP_METHOD_STORE) {
+        if (e->csize != e->size)
+            return -1;
+        memcpy(dst, src, e->size);
+        return e->size;
+    }
+    z_stream zs = {0};
+    if (inflateInit2(&zs, -MAX_WBITS) != Z_OK)
+        return -1;
+    zs.next_in = (Bytef *) src;
+    zs.avail_in = e->csize;
+    zs.next_out = dst;
+    zs.avail_out = e->size;
+    int ret = inflate(&zs, Z_FINISH);
+    ssize_t written = zs.total_out;
+    inflateEnd(&zs);
+    if (ret != Z_STREAM_END) {
+        LOGE("%s%d", "Inflate failed:", ret);
+        return -1;
+    }
+    return written;
+}
+
+#define STREAM_BLOCK_SIZE (64 * 1024)
+
+static bool write_fully(int fd, const void *buf, size_t size) {
+    while (size) {
+        ssize_t n = write(fd, buf, size);
+        if (n < 0) {
+            if (errno == EINTR)
+                continue;
+            LOGE("%s%s", "Write failed:", strerror(errno));
+            return false;
+        }
+        buf += n;
+        size -= n;
+    }
+    return true;
+}
+
+// Stream a mapped zip entry into fd, stored data is written from the mapping directly
+static bool zip_write_entry(archive_handle *h, entry *e, int fd) {
+    const uint8_t *src = zip_entry_data(h, e);
+    if (!src)
+        return false;
+    if (e->method == ZIP_METHOD_STORE)
+        return e->csize == e->size && write_fully(fd, src, e->size);
+    uint8_t *buf = malloc(STREAM_BLOCK_SIZE);
+    if (!buf)
+        return false;
+    z_stream zs = {0};
+    int ret = inflateInit2(&zs, -MAX_WBITS);
+    zs.next_in = (Bytef *) src;
+    zs.avail_in = e->csize;
+    while (ret == Z_OK) {
+        zs.next_out = buf;
+        zs.avail_out = STREAM_BLOCK_SIZE;
+        ret = inflate(&zs, Z_NO_FLUSH);
+        if ((ret == Z_OK || ret == Z_STREAM_END) &&
+            !write_fully(fd, buf, STREAM_BLOCK_SIZE - zs.avail_out))
+            ret = Z_ERRNO;
+    }
+    inflateEnd(&zs);
+    free(buf);
+    if (ret != Z_STREAM_END) {
+        LOGE("%s%d", "Inflate failed:", ret);
         return false;
     }
     return true;
 }
 
+static bool pool_init(archive_handle *h, size_t budget) {
+    h->slots = malloc(h->entry_count * sizeof(pool_slot));
+    if (!h->slots) {
+        LOGE("%s", "Mem alloc failed");
+        return false;
+    }
+    for (int i = 0; i < h->entry_count; i++)
+        h->slots[i] = (pool_slot) {NULL, 0, -1, -1};
+    h->lru_head = h->lru_tail = -1;
+    h->pool_budget = budget;
+    return true;
+}
 
-// Mincore does not support anon mapping yet
-// Now that we use MADV_FREE, how can we detect whether pages is reclaimed?
-static bool is_mempool_pages_present_and_lock(int index) {
-    void *addr = MEMPOOL_ADDR_BY_SORTED_IDX(index);
-    size_t size = MEMPOOL_ENTITY_SIZE(index);
-    mlock(addr, size);
-#if 0
-    unsigned char vec[size / PAGE_SIZE];
-    unsigned char r = 1;
-    mincore(addr, size, vec);
-    for (int i = 0; i < size / PAGE_SIZE; ++i) r &= vec[i];
-    return r;
-#endif
-    return false;
+// Must hold pool_lock
+static void pool_lru_unlink(archive_handle *h, int index) {
+    pool_slot *slot = &h->slots[index];
+    if (slot->prev >= 0)
+        h->slots[slot->prev].next = slot->next;
+    else
+        h->lru_head = slot->next;
+    if (slot->next >= 0)
+        h->slots[slot->next].prev = slot->prev;
+    else
+        h->lru_tail = slot->prev;
+    slot->prev = slot->next = -1;
 }
 
-#define MEMPOOL_IN_CORE_AND_LOCK(x) is_mempool_pages_present_and_lock(x)
+// Must hold pool_lock
+static void pool_lru_push(archive_handle *h, int index) {
+    pool_slot *slot = &h->slots[index];
+    slot->prev = -1;
+    slot->next = h->lru_head;
+    if (h->lru_head >= 0)
+        h->slots[h->lru_head].prev = index;
+    else
+        h->lru_tail = index;
+    h->lru_head = index;
+}
 
-static void mempool_release_pages(void *addr, size_t size) {
-    size = PAGE_ALIGN(size);
-    munlock(addr, size);
-    int ret = madvise(addr, size, MADV_FREE);
-    if (ret == -EINVAL) madvise(addr, size, MADV_DONTNEED);
+// Drop an idle slot, must hold pool_lock
+static void pool_evict(archive_handle *h, int index) {
+    pool_slot *slot = &h->slots[index];
+    size_t size = pool_entity_size(h, index);
+    pool_lru_unlink(h, index);
+    munmap(slot->addr, size);
+    slot->addr = NULL;
+    h->pool_bytes -= size;
+    h->evictions++;
 }
 
-static long archive_list_all_entries(archive_ctx *ctx) {
-    long count = 0;
-    while (archive_read_next_header(ctx->arc, &ctx->entry) == ARCHIVE_OK)
-        if (filename_is_playable_file(archive_entry_pathname(ctx->entry)))
-            count++;
-    if (!count)
-        LOGE("%s", archive_error_string(ctx->arc));
-    return count;
+// Drop least recently used idle slots until size more bytes fit the budget, slots handed out
+// are never dropped. Must hold pool_lock
+static void pool_trim(archive_handle *h, size_t size) {
+    while (h->lru_tail >= 0 && h->pool_bytes + size > h->pool_budget)
+        pool_evict(h, h->lru_tail);
 }
 
 static void archive_release_ctx(archive_ctx *ctx) {
@@ -177,7 +481,7 @@ static void archive_release_ctx(archive_ctx *ctx) {
     }
 }
 
-static int archive_alloc_ctx(archive_ctx **ctxptr) {
+static int archive_alloc_ctx(archive_handle *h, archive_ctx **ctxptr) {
     archive_ctx *ctx;
     int err;
     ctx = calloc(1, sizeof(archive_ctx));
@@ -196,10 +500,11 @@ static int archive_alloc_ctx(archive_ctx **ctxptr) {
     archive_read_support_filter_gzip(ctx->arc);
     archive_read_support_filter_xz(ctx->arc);
     archive_read_set_option(ctx->arc, "zip", "ignorecrc32", "1");
-    if (passwd)
-        archive_read_add_passphrase(ctx->arc, passwd);
-    err = archive_read_open_memory(ctx->arc, archiveAddr, archiveSize);
+    if (h->passwd)
+        archive_read_add_passphrase(ctx->arc, h->passwd);
+    err = archive_read_open_memory(ctx->arc, h->addr, h->size);
     if (err) {
+        LOGE("%s%s", "Archive open failed:", archive_error_string(ctx->arc));
         archive_read_free(ctx->arc);
         free(ctx);
         return err;
@@ -219,10 +524,11 @@ static int archive_skip_to_index(archive_ctx *ctx, int index) {
     return ARCHIVE_FATAL;
 }
 
-static int archive_get_ctx(archive_ctx **ctxptr, int idx) {
+static int archive_get_ctx(archive_handle *h, archive_ctx **ctxptr, int idx) {
     int ret;
     archive_ctx *ctx = NULL;
-    pthread_mutex_lock(&ctx_lock);
+    archive_ctx **ctx_pool = h->ctx_pool;
+    pthread_mutex_lock(&h->ctx_lock);
     for (int i = 0; i < CTX_POOL_SIZE; i++) {
         if (!ctx_pool[i])
             continue;
@@ -237,16 +543,16 @@ static int archive_get_ctx(archive_ctx **ctxptr, int idx) {
     }
     if (ctx)
         ctx->using = 1;
-    pthread_mutex_unlock(&ctx_lock);
+    pthread_mutex_unlock(&h->ctx_lock);
 
     if (!ctx) {
         archive_ctx *victimCtx = NULL;
         int victimIdx = 0;
         int replace = 1;
-        ret = archive_alloc_ctx(&ctx);
+        ret = archive_alloc_ctx(h, &ctx);
         if (ret)
             return ret;
-        pthread_mutex_lock(&ctx_lock);
+        pthread_mutex_lock(&h->ctx_lock);
         for (int i = 0; i < CTX_POOL_SIZE; i++) {
             if (!ctx_pool[i]) {
                 ctx_pool[i] = ctx;
@@ -264,7 +570,7 @@ static int archive_get_ctx(archive_ctx **ctxptr, int idx) {
             archive_release_ctx(victimCtx);
             ctx_pool[victimIdx] = ctx;
         }
-        pthread_mutex_unlock(&ctx_lock);
+        pthread_mutex_unlock(&h->ctx_lock);
     }
     ret = archive_skip_to_index(ctx, idx);
     if (ret != idx) {
@@ -277,156 +583,332 @@ static int archive_get_ctx(archive_ctx **ctxptr, int idx) {
     return 0;
 }
 
-JNIEXPORT jint JNICALL
-Java_com_hippo_UriArchiveAccessor_openArchive(JNIEnv *env, jobject thiz, jint fd, jlong size) {
-    EH_UNUSED(env);
+// Stream the current entry of ctx into fd block by block
+static bool archive_write_data(archive_ctx *ctx, int fd) {
+    const void *buf;
+    size_t size;
+    la_int64_t offset;
+    la_int64_t pos = 0;
+    int ret;
+    while ((ret = archive_read_data_block(ctx->arc, &buf, &size, &offset)) == ARCHIVE_OK) {
+        // Skip holes of sparse entries
+        if (offset > pos && lseek(fd, offset - pos, SEEK_CUR) < 0) {
+            LOGE("%s%s", "Seek failed:", strerror(errno));
+            return false;
+        }
+        if (!write_fully(fd, buf, size))
+            return false;
+        pos = offset + size;
+    }
+    if (ret != ARCHIVE_EOF) {
+        LOGE("%s%s", "Archive read failed:", archive_error_string(ctx->arc));
+        return false;
+    }
+    return true;
+}
+
+// Stream a sorted entry into fd, never holding the whole entry in memory
+static bool archive_write_entry(archive_handle *h, int index, int fd) {
+    entry *e = &h->entries[index];
+    if (e->offset >= 0) {
+        if (zip_write_entry(h, e, fd))
+            return true;
+        LOGE("%s", "Zip random access failed, fall back to libarchive");
+        if (lseek(fd, 0, SEEK_SET) || ftruncate(fd, 0))
+            return false;
+    }
+    archive_ctx *ctx = NULL;
+    if (archive_get_ctx(h, &ctx, e->index))
+        return false;
+    bool ret = archive_write_data(ctx, fd);
+    ctx->using = 0;
+    return ret;
+}
+
+static int compare_archive_order(const void *a, const void *b) {
+    return (*(entry **) a)->index - (*(entry **) b)->index;
+}
+
+static void archive_handle_free_entries(archive_handle *h) {
+    if (h->entries) {
+        for (int i = 0; i < h->entry_count; ++i) {
+            free((void *) h->entries[i].filename);
+        }
+        free(h->entries);
+    }
+    h->entries = NULL;
+    h->entry_count = 0;
+}
+
+static void archive_handle_free(archive_handle *h) {
+    for (int i = 0; i < CTX_POOL_SIZE; i++)
+        archive_release_ctx(h->ctx_pool[i]);
+    pthread_mutex_destroy(&h->ctx_lock);
+    free(h->passwd);
+    if (h->addr)
+        munmap(h->addr, h->size);
+    if (h->slots) {
+        for (int i = 0; i < h->entry_count; i++)
+            if (h->slots[i].addr)
+                munmap(h->slots[i].addr, pool_entity_size(h, i));
+        free(h->slots);
+    }
+    pthread_mutex_destroy(&h->pool_lock);
+    archive_handle_free_entries(h);
+    free(h);
+}
+
+static void archive_madvise_for_format(archive_handle *h) {
+    switch (h->format) {
+        case ARCHIVE_FORMAT_ZIP:
+        case ARCHIVE_FORMAT_RAR_V5:
+            madvise_log_if_error(h->addr, h->size, MADV_SEQUENTIAL);
+            break;
+        case ARCHIVE_FORMAT_7ZIP: // Seek is bad
+            madvise_log_if_error(h->addr, h->size, MADV_RANDOM);
+            break;
+        default:;
+    }
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_hippo_UriArchiveAccessor_openArchive(JNIEnv *env, jobject thiz, jint fd, jlong size,
+                                              jstring cache_path, jlong budget) {
     EH_UNUSED(thiz);
     archive_ctx *ctx = NULL;
+    const char *path = (*env)->GetStringUTFChars(env, cache_path, NULL);
+    archive_handle *h = calloc(1, sizeof(archive_handle));
+    if (!h) {
+        LOGE("%s", "Mem alloc failed");
+        return 0;
+    }
+    pthread_mutex_init(&h->ctx_lock, 0);
+    pthread_mutex_init(&h->pool_lock, 0);
     int mmap_flags = MAP_PRIVATE;
-    archiveAddr = mmap64(0, size, PROT_READ, mmap_flags, fd, 0);
-    if (archiveAddr == MAP_FAILED) {
+    h->addr = mmap64(0, size, PROT_READ, mmap_flags, fd, 0);
+    if (h->addr == MAP_FAILED) {
+        h->addr = NULL;
         LOGE("%s%s", "mmap64 failed with error ", strerror(errno));
-        return 0;
+        goto fail;
     }
-    archiveSize = size;
-    madvise_log_if_error(archiveAddr, archiveSize, MADV_WILLNEED);
-    pthread_mutex_init(&ctx_lock, 0);
-    ctx_pool = calloc(CTX_POOL_SIZE, sizeof(archive_ctx **));
-    if (!ctx_pool) {
-        LOGE("Allocate archive ctx pool failed:ENOMEM");
-        return 0;
+    h->size = size;
+    if (index_cache_read(h, path)) {
+        LOGI("%s%zu%s", "Found ", h->entry_count, " image entries in index cache");
+        archive_madvise_for_format(h);
+        if (!pool_init(h, budget))
+            goto fail;
+        (*env)->ReleaseStringUTFChars(env, cache_path, path);
+        return (jlong) h;
     }
-    long r = archive_alloc_ctx(&ctx);
-    if (r) {
-        if (r == -ENOMEM)
-            LOGE("%s", "Mem alloc failed");
-        LOGE("%s%s", "Archive open failed:", archive_error_string(ctx->arc));
-    } else {
-        entryCount = archive_list_all_entries(ctx);
-        LOGI("%s%zu%s", "Found ", entryCount, " image entries in archive");
-
-        // We must read through the file|vm then we can know whether it is encrypted
-        int encryptRet = archive_read_has_encrypted_entries(ctx->arc);
-        switch (encryptRet) {
-            case 1: // At lease 1 encrypted entry
-                need_encrypt = true;
-                break;
-            case 0: // format supports but no encrypted entry found
-            default:
-                need_encrypt = false;
-        }
-
-        int format = archive_format(ctx->arc);
-        switch (format) {
-            case ARCHIVE_FORMAT_ZIP:
-            case ARCHIVE_FORMAT_RAR_V5:
-                madvise_log_if_error(archiveAddr, archiveSize, MADV_SEQUENTIAL);
-                break;
-            case ARCHIVE_FORMAT_7ZIP: // Seek is bad
-                madvise_log_if_error(archiveAddr, archiveSize, MADV_RANDOM);
-                break;
-            default:;
-        }
+    archive_handle_free_entries(h);
+    madvise_log_if_error(h->addr, h->size, MADV_WILLNEED);
+    if (archive_alloc_ctx(h, &ctx))
+        goto fail;
+    bool indexed = archive_index_entries(h, ctx);
+    LOGI("%s%zu%s", "Found ", h->entry_count, " image entries in archive");
+
+    // We must read through the file|vm then we can know whether it is encrypted
+    int encryptRet = archive_read_has_encrypted_entries(ctx->arc);
+    switch (encryptRet) {
+        case 1: // At lease 1 encrypted entry
+            h->need_encrypt = true;
+            break;
+        case 0: // format supports but no encrypted entry found
+        default:
+            h->need_encrypt = false;
     }
 
+    h->format = archive_format(ctx->arc);
+    archive_madvise_for_format(h);
     archive_release_ctx(ctx);
+    if (!indexed || !pool_init(h, budget))
+        goto fail;
+    if (h->format == ARCHIVE_FORMAT_ZIP && !h->need_encrypt)
+        zip_map_central_directory(h);
+    index_cache_write(h, path);
+    (*env)->ReleaseStringUTFChars(env, cache_path, path);
+    return (jlong) h;
+
+fail:
+    (*env)->ReleaseStringUTFChars(env, cache_path, path);
+    archive_handle_free(h);
+    return 0;
+}
 
-    r = archive_alloc_ctx(&ctx);
-    if (r) {
-        if (r == -ENOMEM)
-            LOGE("%s", "Mem alloc failed");
-        r = 0;
-        LOGE("%s%s", "Archive open failed:", archive_error_string(ctx->arc));
-    } else {
-        entries = calloc(entryCount, sizeof(entry));
-        r = archive_map_entries_index(ctx);
-        if (!archive_prealloc_mempool()) {
-            r = 0;
-            for (int i = 0; i < entryCount; ++i) {
-                free((void *) entries[i].filename);
-            }
-            free(entries);
+JNIEXPORT jint JNICALL
+Java_com_hippo_UriArchiveAccessor_getEntryCount(JNIEnv *env, jobject thiz, jlong handle) {
+    EH_UNUSED(env);
+    EH_UNUSED(thiz);
+    archive_handle *h = (archive_handle *) handle;
+    return h->entry_count;
+}
+
+// Extract a sorted entry into a new mapping, NULL if failed
+static void *archive_extract_entry(archive_handle *h, int index) {
+    size_t size = h->entries[index].size;
+    size_t map_size = pool_entity_size(h, index);
+    void *addr = mmap(0, map_size, PROT_RW, MAP_ANON_POOL, -1, 0);
+    if (addr == MAP_FAILED) {
+        LOGE("%s%s", "mmap failed with error ", strerror(errno));
+        return NULL;
+    }
+    if (h->entries[index].offset >= 0) {
+        // Random access, no need to walk headers from a pooled context
+        if (zip_extract_entry(h, &h->entries[index], addr) == size)
+            return addr;
+        LOGE("%s", "Zip random access failed, fall back to libarchive");
+    }
+    archive_ctx *ctx = NULL;
+    if (archive_get_ctx(h, &ctx, h->entries[index].index))
+        goto fail;
+    ssize_t ret = archive_read_data(ctx->arc, addr, size);
+    ctx->using = 0;
+    if (ret == size)
+        return addr;
+    LOGE("%s", "No enough data read, WTF?");
+    if (ret < 0)
+        LOGE("%s%s", "Archive read failed:", archive_error_string(ctx->arc));
+fail:
+    munmap(addr, map_size);
+    return NULL;
+}
+
+// Get a sorted entry extracted, and hand it out if hold. Read-ahead (!hold) never pushes the
+// pool over budget. Caller serializes calls of the same index
+static void *pool_obtain(archive_handle *h, int index, bool hold) {
+    pool_slot *slot = &h->slots[index];
+    size_t size = pool_entity_size(h, index);
+    pthread_mutex_lock(&h->pool_lock);
+    void *addr = slot->addr;
+    if (addr) {
+        if (hold) {
+            h->hits++;
+            if (!slot->refs++)
+                pool_lru_unlink(h, index);
+        } else if (!slot->refs) {
+            pool_lru_unlink(h, index);
+            pool_lru_push(h, index);
         }
+        pthread_mutex_unlock(&h->pool_lock);
+        return addr;
+    }
+    pool_trim(h, size);
+    if (!hold && h->pool_bytes + size > h->pool_budget) {
+        pthread_mutex_unlock(&h->pool_lock);
+        return NULL;
+    }
+    if (hold)
+        h->misses++;
+    // Reserved ahead, so concurrent extractions share the budget
+    h->pool_bytes += size;
+    pthread_mutex_unlock(&h->pool_lock);
+
+    addr = archive_extract_entry(h, index);
+
+    pthread_mutex_lock(&h->pool_lock);
+    if (addr) {
+        slot->addr = addr;
+        if (hold)
+            slot->refs++;
+        else
+            pool_lru_push(h, index);
+    } else {
+        h->pool_bytes -= size;
     }
+    pthread_mutex_unlock(&h->pool_lock);
+    return addr;
+}
 
-    archive_release_ctx(ctx);
-    return r;
+JNIEXPORT jobject JNICALL
+Java_com_hippo_UriArchiveAccessor_extractToByteBuffer(JNIEnv *env, jobject thiz, jlong handle, jint index) {
+    EH_UNUSED(thiz);
+    archive_handle *h = (archive_handle *) handle;
+    void *addr = pool_obtain(h, index, true);
+    if (!addr)
+        return 0;
+    return (*env)->NewDirectByteBuffer(env, addr, h->entries[index].size);
 }
 
-#pragma clang diagnostic push
-#pragma ide diagnostic ignored "ConstantConditionsOC"
-#pragma ide diagnostic ignored "UnreachableCode"
+JNIEXPORT jboolean JNICALL
+Java_com_hippo_UriArchiveAccessor_prefetch(JNIEnv *env, jobject thiz, jlong handle, jint index) {
+    EH_UNUSED(env);
+    EH_UNUSED(thiz);
+    archive_handle *h = (archive_handle *) handle;
+    return pool_obtain(h, index, false) != NULL;
+}
 
-JNIEXPORT jobject JNICALL
-Java_com_hippo_UriArchiveAccessor_extractToByteBuffer(JNIEnv *env, jobject thiz, jint index) {
+JNIEXPORT void JNICALL
+Java_com_hippo_UriArchiveAccessor_evictOutside(JNIEnv *env, jobject thiz, jlong handle, jint first,
+                                               jint last) {
     EH_UNUSED(env);
     EH_UNUSED(thiz);
-    void *addr = MEMPOOL_ADDR_BY_SORTED_IDX(index);
-    size_t size = entries[index].size;
-    if (!MEMPOOL_IN_CORE_AND_LOCK(index)) {
-        index = entries[index].index;
-        archive_ctx *ctx = NULL;
-        int ret;
-        ret = archive_get_ctx(&ctx, index);
-        if (ret) return 0;
-        ret = archive_read_data(ctx->arc, addr, size);
-        ctx->using = 0;
-        if (ret == size)
-            return (*env)->NewDirectByteBuffer(env, addr, size);
-        if (ret != size)
-            LOGE("%s", "No enough data read, WTF?");
-        if (ret < 0)
-            LOGE("%s%s", "Archive read failed:", archive_error_string(ctx->arc));
-        mempool_release_pages(addr, size);
-    } else {
-        return (*env)->NewDirectByteBuffer(env, addr, size);
+    archive_handle *h = (archive_handle *) handle;
+    pthread_mutex_lock(&h->pool_lock);
+    for (int i = 0; i < h->entry_count; i++) {
+        if (i >= first && i <= last)
+            continue;
+        if (h->slots[i].addr && !h->slots[i].refs)
+            pool_evict(h, i);
     }
-    return 0;
+    pthread_mutex_unlock(&h->pool_lock);
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_com_hippo_UriArchiveAccessor_getPoolStats(JNIEnv *env, jobject thiz, jlong handle) {
+    EH_UNUSED(thiz);
+    archive_handle *h = (archive_handle *) handle;
+    pthread_mutex_lock(&h->pool_lock);
+    jlong stats[5] = {h->hits, h->misses, h->evictions, h->pool_bytes, h->pool_budget};
+    pthread_mutex_unlock(&h->pool_lock);
+    jlongArray ret = (*env)->NewLongArray(env, 5);
+    if (ret)
+        (*env)->SetLongArrayRegion(env, ret, 0, 5, stats);
+    return ret;
 }
 
-#pragma clang diagnostic pop
+JNIEXPORT jboolean JNICALL
+Java_com_hippo_UriArchiveAccessor_needStreamOrder(JNIEnv *env, jobject thiz, jlong handle) {
+    EH_UNUSED(env);
+    EH_UNUSED(thiz);
+    archive_handle *h = (archive_handle *) handle;
+    // Only zip entries can be reached without decoding the ones before
+    return h->format != ARCHIVE_FORMAT_ZIP;
+}
 
 JNIEXPORT void JNICALL
-Java_com_hippo_UriArchiveAccessor_closeArchive(JNIEnv *env, jobject thiz) {
+Java_com_hippo_UriArchiveAccessor_closeArchive(JNIEnv *env, jobject thiz, jlong handle) {
     EH_UNUSED(env);
     EH_UNUSED(thiz);
-    for (int i = 0; i < CTX_POOL_SIZE; i++)
-        archive_release_ctx(ctx_pool[i]);
-    free(passwd);
-    free(ctx_pool);
-    pthread_mutex_destroy(&ctx_lock);
-    passwd = NULL;
-    need_encrypt = false;
-    munmap(archiveAddr, archiveSize);
-    munmap(mempool, MEMPOOL_SIZE);
-    free(mempoolofs);
-    for (int i = 0; i < entryCount; ++i) {
-        free((void *) entries[i].filename);
-    }
-    free(entries);
+    archive_handle_free((archive_handle *) handle);
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_hippo_UriArchiveAccessor_needPassword(JNIEnv *env, jobject thiz) {
+Java_com_hippo_UriArchiveAccessor_needPassword(JNIEnv *env, jobject thiz, jlong handle) {
     EH_UNUSED(env);
     EH_UNUSED(thiz);
-    return need_encrypt;
+    archive_handle *h = (archive_handle *) handle;
+    return h->need_encrypt;
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_hippo_UriArchiveAccessor_providePassword(JNIEnv *env, jobject thiz, jstring str) {
+Java_com_hippo_UriArchiveAccessor_providePassword(JNIEnv *env, jobject thiz, jlong handle, jstring str) {
     EH_UNUSED(thiz);
+    archive_handle *h = (archive_handle *) handle;
     struct archive_entry *entry;
     archive_ctx *ctx;
     jboolean ret = true;
     int len = (*env)->GetStringUTFLength(env, str);
-    passwd = realloc(passwd, len * sizeof(char));
+    char *passwd = realloc(h->passwd, (len + 1) * sizeof(char));
     if (!passwd) {
         LOGE("Allocate passwd buffer failed");
         return false;
     }
-    strcpy(passwd, (*env)->GetStringUTFChars(env, str, NULL));
-    archive_alloc_ctx(&ctx);
+    h->passwd = passwd;
+    const char *chars = (*env)->GetStringUTFChars(env, str, NULL);
+    strcpy(passwd, chars);
+    (*env)->ReleaseStringUTFChars(env, str, chars);
+    if (archive_alloc_ctx(h, &ctx))
+        return false;
     void *tmpBuf = alloca(4096);
     while (archive_read_next_header(ctx->arc, &entry) == ARCHIVE_OK) {
         if (!filename_is_playable_file(archive_entry_pathname(entry)))
@@ -444,38 +926,84 @@ Java_com_hippo_UriArchiveAccessor_providePassword(JNIEnv *env, jobject thiz, jst
 }
 
 JNIEXPORT jstring JNICALL
-Java_com_hippo_UriArchiveAccessor_getFilename(JNIEnv *env, jobject thiz, jint index) {
+Java_com_hippo_UriArchiveAccessor_getFilename(JNIEnv *env, jobject thiz, jlong handle, jint index) {
     EH_UNUSED(env);
     EH_UNUSED(thiz);
-    index = entries[index].index;
-    archive_ctx *ctx = NULL;
-    int ret;
-    ret = archive_get_ctx(&ctx, index);
-    if (ret)
-        return NULL;
-    jstring str = (*env)->NewStringUTF(env, archive_entry_pathname(ctx->entry));
-    ctx->using = 0;
-    return str;
+    archive_handle *h = (archive_handle *) handle;
+    // Names are in the entry table already
+    return (*env)->NewStringUTF(env, h->entries[index].filename);
 }
 
-JNIEXPORT void JNICALL
-Java_com_hippo_UriArchiveAccessor_extractToFd(JNIEnv *env, jobject thiz, jint index, jint fd) {
+JNIEXPORT jboolean JNICALL
+Java_com_hippo_UriArchiveAccessor_extractToFd(JNIEnv *env, jobject thiz, jlong handle, jint index, jint fd) {
     EH_UNUSED(env);
     EH_UNUSED(thiz);
-    index = entries[index].index;
-    archive_ctx *ctx = NULL;
-    int ret;
-    ret = archive_get_ctx(&ctx, index);
-    if (!ret) {
-        archive_read_data_into_fd(ctx->arc, fd);
-        ctx->using = 0;
+    archive_handle *h = (archive_handle *) handle;
+    return archive_write_entry(h, index, fd);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_hippo_UriArchiveAccessor_extractRange(JNIEnv *env, jobject thiz, jlong handle, jint first,
+                                               jint last, jobject callback) {
+    EH_UNUSED(thiz);
+    archive_handle *h = (archive_handle *) handle;
+    if (first < 0)
+        first = 0;
+    if (last >= (jint) h->entry_count)
+        last = h->entry_count - 1;
+    int count = last - first + 1;
+    if (count <= 0)
+        return 0;
+    jclass cls = (*env)->GetObjectClass(env, callback);
+    jmethodID open_entry = (*env)->GetMethodID(env, cls, "openEntry", "(I)I");
+    jmethodID close_entry = (*env)->GetMethodID(env, cls, "closeEntry", "(IZ)Z");
+    (*env)->DeleteLocalRef(env, cls);
+    if (!open_entry || !close_entry)
+        return 0;
+    // Called back once per entry over a long export, don't lean on the local frame
+    callback = (*env)->NewGlobalRef(env, callback);
+    if (!callback)
+        return 0;
+    entry **order = malloc(count * sizeof(entry *));
+    if (!order) {
+        LOGE("%s", "Mem alloc failed");
+        (*env)->DeleteGlobalRef(env, callback);
+        return 0;
     }
+    for (int i = 0; i < count; i++)
+        order[i] = &h->entries[first + i];
+    // Archive order, so a solid archive is decompressed in one forward pass
+    qsort(order, count, sizeof(entry *), compare_archive_order);
+    int written = 0;
+    for (int i = 0; i < count; i++) {
+        int index = order[i] - h->entries;
+        int fd = (*env)->CallIntMethod(env, callback, open_entry, index);
+        if ((*env)->ExceptionCheck(env))
+            break;
+        if (fd < 0)
+            continue;
+        bool ok = archive_write_entry(h, index, fd);
+        written += ok;
+        jboolean next = (*env)->CallBooleanMethod(env, callback, close_entry, index, ok);
+        if ((*env)->ExceptionCheck(env) || !next)
+            break;
+    }
+    free(order);
+    (*env)->DeleteGlobalRef(env, callback);
+    return written;
 }
 
 JNIEXPORT void JNICALL
-Java_com_hippo_UriArchiveAccessor_releaseByteBuffer(JNIEnv *env, jobject thiz, jobject buffer) {
+Java_com_hippo_UriArchiveAccessor_releaseByteBuffer(JNIEnv *env, jobject thiz, jlong handle, jint index) {
+    EH_UNUSED(env);
     EH_UNUSED(thiz);
-    void *addr = (*env)->GetDirectBufferAddress(env, buffer);
-    size_t size = (*env)->GetDirectBufferCapacity(env, buffer);
-    mempool_release_pages(addr, size);
+    archive_handle *h = (archive_handle *) handle;
+    pool_slot *slot = &h->slots[index];
+    pthread_mutex_lock(&h->pool_lock);
+    // Kept for a later request until the budget is needed
+    if (slot->refs && !--slot->refs) {
+        pool_lru_push(h, index);
+        pool_trim(h, 0);
+    }
+    pthread_mutex_unlock(&h->pool_lock);
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 Tarsin Norbin
+ *
+ * This file is part of EhViewer
+ *
+ * EhViewer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * EhViewer is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * EhViewer. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+#include <stdbool.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+
+#include <jni.h>
+#include <android/log.h>
+
+#include <archive.h>
+#include <archive_entry.h>
+
+#define LOG_TAG "libarchive_packer"
+
+#include "ehviewer.h"
+
+#define PACK_BLOCK_SIZE (64 * 1024)
+
+// A zip being written, handed to Kotlin as a jlong
+typedef struct {
+    struct archive *arc;
+    void *buf;
+} packer;
+
+static void packer_free(packer *p) {
+    archive_write_free(p->arc);
+    free(p->buf);
+    free(p);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_hippo_ArchivePacker_openPacker(JNIEnv *env, jobject thiz, jint fd) {
+    EH_UNUSED(env);
+    EH_UNUSED(thiz);
+    packer *p = calloc(1, sizeof(packer));
+    if (!p) {
+        LOGE("%s", "Mem alloc failed");
+        return 0;
+    }
+    p->arc = archive_write_new();
+    p->buf = malloc(PACK_BLOCK_SIZE);
+    if (!p->arc || !p->buf) {
+        LOGE("%s", "Mem alloc failed");
+        packer_free(p);
+        return 0;
+    }
+    // Images are compressed already, stored entries can also be read by offset
+    if (archive_write_set_format_zip(p->arc) ||
+        archive_write_set_option(p->arc, "zip", "compression", "store") ||
+        archive_write_set_bytes_in_last_block(p->arc, 1) ||
+        archive_write_open_fd(p->arc, fd)) {
+        LOGE("%s%s", "Packer open failed:", archive_error_string(p->arc));
+        packer_free(p);
+        return 0;
+    }
+    return (jlong) p;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_hippo_ArchivePacker_addEntry(JNIEnv *env, jobject thiz, jlong handle, jstring name, jint fd,
+                                      jlong size, jlong mtime) {
+    EH_UNUSED(thiz);
+    packer *p = (packer *) handle;
+    struct archive_entry *entry = archive_entry_new();
+    if (!entry)
+        return false;
+    const char *path = (*env)->GetStringUTFChars(env, name, NULL);
+    archive_entry_set_pathname(entry, path);
+    (*env)->ReleaseStringUTFChars(env, name, path);
+    archive_entry_set_filetype(entry, AE_IFREG);
+    archive_entry_set_perm(entry, 0644);
+    archive_entry_set_size(entry, size);
+    archive_entry_set_mtime(entry, mtime, 0);
+    int ret = archive_write_header(p->arc, entry);
+    archive_entry_free(entry);
+    if (ret != ARCHIVE_OK) {
+        LOGE("%s%s", "Write header failed:", archive_error_string(p->arc));
+        return false;
+    }
+    // Streamed block by block, an entry is never held in memory whole
+    while (size > 0) {
+        ssize_t n = read(fd, p->buf, size < PACK_BLOCK_SIZE ? size : PACK_BLOCK_SIZE);
+        if (n < 0 && errno == EINTR)
+            continue;
+        if (n <= 0) {
+            LOGE("%s%s", "Read failed:", n ? strerror(errno) : "unexpected EOF");
+            return false;
+        }
+        if (archive_write_data(p->arc, p->buf, n) != n) {
+            LOGE("%s%s", "Write data failed:", archive_error_string(p->arc));
+            return false;
+        }
+        size -= n;
+    }
+    return true;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_hippo_ArchivePacker_closePacker(JNIEnv *env, jobject thiz, jlong handle) {
+    EH_UNUSED(env);
+    EH_UNUSED(thiz);
+    packer *p = (packer *) handle;
+    // Writes the central directory
+    bool ret = archive_write_close(p->arc) == ARCHIVE_OK;
+    if (!ret)
+        LOGE("%s%s", "Packer close failed:", archive_error_string(p->arc));
+    packer_free(p);
+    return ret;
+}
@@ -0,0 +1,48 @@
+package com.davemorrissey.labs.subscaleview
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import androidx.collection.LruCache
+import com.davemorrissey.labs.subscaleview.provider.InputProvider
+import com.hippo.image.BitmapPool
+
+/**
+ * Bands decoded by [SubsamplingScaleImageView.setBandDecoding] and scrolled out of the viewport,
+ * taken back when scrolled to again instead of decoding them again. Bands are keyed by the
+ * provider of their image, bands of images no longer shown are evicted in time. Evicted bands go
+ * to [BitmapPool].
+ */
+class BandCache(maxSize: Int) {
+    data class Key(val provider: InputProvider, val sRect: Rect, val sampleSize: Int, val cropBorders: Boolean)
+
+    private val cache = object : LruCache<Key, Bitmap>(maxSize) {
+        override fun sizeOf(key: Key, value: Bitmap) = value.allocationByteCount
+
+        override fun entryRemoved(evicted: Boolean, key: Key, oldValue: Bitmap, newValue: Bitmap?) {
+            // Bands taken out are shown again, the others are free
+            if (evicted || newValue != null) BitmapPool.put(oldValue)
+        }
+    }
+
+    private var hits = 0
+    private var misses = 0
+
+    /**
+     * Take the band out of the cache, it's owned by the caller from now on
+     */
+    @Synchronized
+    fun take(key: Key): Bitmap? {
+        val bitmap = cache.remove(key)
+        if (bitmap != null) hits++ else misses++
+        return bitmap
+    }
+
+    fun put(key: Key, bitmap: Bitmap) {
+        cache.put(key, bitmap)
+    }
+
+    fun clear() = cache.evictAll()
+
+    @Synchronized
+    override fun toString() = "${cache.size()} band bytes, hits $hits, misses $misses"
+}
@@ -22,6 +22,8 @@ import androidx.annotation.IntDef
 import com.davemorrissey.labs.subscaleview.decoder.Decoder
 import com.davemorrissey.labs.subscaleview.decoder.ImageDecoder
 import com.davemorrissey.labs.subscaleview.provider.InputProvider
+import com.hippo.image.BitmapPool
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
@@ -35,6 +37,7 @@ import java.util.Locale
 import java.util.concurrent.locks.ReadWriteLock
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.math.abs
+import kotlin.math.ceil
 import kotlin.math.max
 import kotlin.math.min
 import kotlin.math.roundToInt
@@ -124,6 +127,14 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
     // Whether tiles should be loaded while gestures and animations are still in progress
     private var eagerLoadingEnabled = true
 
+    // Band decoding, see setBandDecoding
+    private var vBandHeight = 0
+    private var bandCache: BandCache? = null
+
+    // Rows of the view on screen or about to be, the whole view until set
+    private var vViewportTop = Int.MIN_VALUE
+    private var vViewportBottom = Int.MAX_VALUE
+
     // Gesture detection settings
     private var panEnabled = true
 
@@ -378,6 +389,7 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
      */
     private fun reset(newImage: Boolean) {
         debug("reset newImage=$newImage")
+        val bandProvider = provider
         scale = 0F
         scaleStart = 0F
         vTranslate = null
@@ -426,8 +438,7 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
             tileMap.forEach { (_, value) ->
                 value.forEach { tile ->
                     tile.visible = false
-                    tile.bitmap?.recycle()
-                    tile.bitmap = null
+                    freeTile(tile, bandProvider)
                 }
             }
             tileMap.clear()
@@ -1108,7 +1119,7 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
                 tileMap.forEach { (key, value) ->
                     if (key == fullImageSampleSize) {
                         value.forEach { tile ->
-                            if (tile.loading || tile.bitmap == null) {
+                            if ((tile.visible || !isBandDecoding) && (tile.loading || tile.bitmap == null)) {
                                 baseLayerReady = false
                             }
                         }
@@ -1152,6 +1163,7 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
 
     private fun loadTile(tile: Tile) = coroutineScope.launch {
         try {
+            val bandKey = bandKey(tile, provider)
             val imageDecoder = decoder ?: return@launch
             if (!imageDecoder.isReady || !tile.visible) return@launch
 
@@ -1160,15 +1172,26 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
                 tile.sRect,
                 tile.sampleSize
             )
-            decoderLock.readLock().lock()
-            try {
-                if (imageDecoder.isReady) {
-                    tile.bitmap = imageDecoder.decodeRegion(tile.fileSRect, tile.sampleSize)
-                    onTileLoaded()
+            val cached = bandKey?.let { bandCache?.take(it) }
+            if (cached != null) {
+                tile.bitmap = cached
+                onTileLoaded()
+                return@launch
+            }
+            // Wait for a free decoder before locking, the read lock can't be held across suspension
+            imageDecoder.reserve {
+                decoderLock.readLock().lock()
+                try {
+                    if (imageDecoder.isReady) {
+                        tile.bitmap = imageDecoder.decodeRegion(tile.fileSRect, tile.sampleSize)
+                        onTileLoaded()
+                    }
+                } finally {
+                    decoderLock.readLock().unlock()
                 }
-            } finally {
-                decoderLock.readLock().unlock()
             }
+        } catch (e: CancellationException) {
+            throw e
         } catch (e: Exception) {
             Log.e(TAG, "Failed to decode tile", e)
             onImageEventListener?.onTileLoadError(e)
@@ -1196,9 +1219,15 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
         if (fullImageSampleSize > 1) {
             fullImageSampleSize /= 2
         }
-        initialiseTileMap(maxTileDimensions)
-        tileMap[fullImageSampleSize]?.forEach {
-            loadTile(it)
+        // Bands split the image in rows whatever the tile size allows, only those in the viewport are loaded
+        val bands = if (isBandDecoding) ceil(sHeight * satTemp!!.scale / vBandHeight).toInt() else 1
+        initialiseTileMap(maxTileDimensions, bands)
+        if (!isBandDecoding) {
+            tileMap[fullImageSampleSize]?.forEach {
+                it.visible = true
+                it.loading = true
+                loadTile(it)
+            }
         }
         refreshRequiredTiles(true)
     }
@@ -1217,39 +1246,58 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
 
         // Load tiles of the correct sample size that are on screen. Discard tiles off screen, and those that are higher
         // resolution than required, or lower res than required but not the base layer, so the base layer is always present.
+        // With band decoding the base layer is only kept in the viewport too
         tileMap.forEach { (_, value) ->
             value.forEach { tile ->
                 if (tile.sampleSize < sampleSize || tile.sampleSize > sampleSize && tile.sampleSize != fullImageSampleSize) {
                     tile.visible = false
-                    tile.bitmap?.recycle()
-                    tile.bitmap = null
+                    freeTile(tile)
                 }
                 if (tile.sampleSize == sampleSize) {
                     if (tileVisible(tile)) {
                         tile.visible = true
                         if (!tile.loading && tile.bitmap == null && load) {
+                            tile.loading = true
                             loadTile(tile)
                         }
-                    } else if (tile.sampleSize != fullImageSampleSize) {
+                    } else if (tile.sampleSize != fullImageSampleSize || isBandDecoding) {
                         tile.visible = false
-                        tile.bitmap?.recycle()
-                        tile.bitmap = null
+                        freeTile(tile)
                     }
                 } else if (tile.sampleSize == fullImageSampleSize) {
-                    tile.visible = true
+                    tile.visible = !isBandDecoding || tileVisible(tile)
+                    if (!tile.visible) freeTile(tile)
                 }
             }
         }
     }
 
+    private val isBandDecoding: Boolean
+        get() = vBandHeight > 0
+
+    private fun bandKey(tile: Tile, provider: InputProvider?): BandCache.Key? {
+        if (!isBandDecoding || bandCache == null || provider == null) return null
+        return BandCache.Key(provider, Rect(tile.fileSRect), tile.sampleSize, cropBorders)
+    }
+
+    /**
+     * Releases the bitmap of a tile, bands are kept in the band cache
+     */
+    private fun freeTile(tile: Tile, provider: InputProvider? = this.provider) {
+        val bitmap = tile.bitmap ?: return
+        tile.bitmap = null
+        val key = bandKey(tile, provider)
+        if (key != null) bandCache!!.put(key, bitmap) else BitmapPool.put(bitmap)
+    }
+
     /**
      * Determine whether tile is visible.
      */
     private fun tileVisible(tile: Tile): Boolean {
         val sVisLeft = viewToSourceX(0F)
         val sVisRight = viewToSourceX(width.toFloat())
-        val sVisTop = viewToSourceY(0F)
-        val sVisBottom = viewToSourceY(height.toFloat())
+        val sVisTop = viewToSourceY(vViewportTop.coerceAtLeast(0).toFloat())
+        val sVisBottom = viewToSourceY(vViewportBottom.coerceAtMost(height).toFloat())
         return !(sVisLeft > tile.sRect.right || tile.sRect.left > sVisRight || sVisTop > tile.sRect.bottom || tile.sRect.top > sVisBottom)
     }
 
@@ -1401,12 +1449,12 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
     /**
      * Once source image and view dimensions are known, creates a map of sample size to tile grid.
      */
-    private fun initialiseTileMap(maxTileDimensions: Point) {
+    private fun initialiseTileMap(maxTileDimensions: Point, minYTiles: Int) {
         debug("initialiseTileMap maxTileDimensions=%dx%d", maxTileDimensions.x, maxTileDimensions.y)
         tileMap.clear()
         var sampleSize = fullImageSampleSize
         var xTiles = 1
-        var yTiles = 1
+        var yTiles = minYTiles
         while (true) {
             var sTileWidth = sWidth / xTiles
             var sTileHeight = sHeight / yTiles
@@ -1537,6 +1585,31 @@ open class SubsamplingScaleImageView @JvmOverloads constructor(
         this.cropBorders = cropBorders
     }
 
+    /**
+     * Decode the image in full width bands [vBandHeight] pixels tall at the initial scale, only
+     * those meeting the viewport given to [setViewport]. For views taller than the screen scrolled
+     * by a parent. Bands scrolled away are kept in [cache] and taken back from it when scrolled to
+     * again. Takes effect with the next image, 0 to decode tiles of the whole view.
+     */
+    fun setBandDecoding(vBandHeight: Int, cache: BandCache?) {
+        this.vBandHeight = vBandHeight
+        bandCache = cache
+    }
+
+    /**
+     * Set the rows of the view on screen, with the margins to decode ahead of a scroll. Tiles out
+     * of them aren't loaded, and are released with band decoding.
+     */
+    fun setViewport(vTop: Int, vBottom: Int) {
+        if (vViewportTop == vTop && vViewportBottom == vBottom) return
+        vViewportTop = vTop
+        vViewportBottom = vBottom
+        if (vTranslate != null && tileMap.isNotEmpty()) {
+            refreshRequiredTiles(true)
+            invalidate()
+        }
+    }
+
     /**
      * By default the View automatically calculates the optimal tile size. Set this to override this, and force an upper limit to the dimensions of the generated tiles. Passing [.TILE_SIZE_AUTO] will re-enable the default behaviour.
      *
@@ -24,6 +24,13 @@ interface Decoder {
     @Throws(Exception::class)
     fun init(context: Context, provider: InputProvider): Point
 
+    /**
+     * Run [block], which calls [decodeRegion], once the decoder can take it. Implementations
+     * with a limited number of regions decoded at once suspend here until one is free, instead
+     * of blocking in [decodeRegion].
+     */
+    suspend fun <T> reserve(block: () -> T): T = block()
+
     /**
      * Decode a region of the image with the given sample size. This method is called off the UI
      * thread so it can safely load the image on the current thread. It is called from
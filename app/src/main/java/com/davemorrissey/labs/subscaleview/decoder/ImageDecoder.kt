@@ -2,17 +2,47 @@ package com.davemorrissey.labs.subscaleview.decoder
 
 import android.content.Context
 import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Color
 import android.graphics.Point
 import android.graphics.Rect
 import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView
 import com.davemorrissey.labs.subscaleview.provider.InputProvider
+import com.hippo.image.BitmapPool
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.IOException
+import kotlin.math.abs
 
+/**
+ * Decodes regions with [BitmapRegionDecoder]. A decoder decodes one region at a time, so up to
+ * [MAX_DECODERS] of them are opened on demand for tiles decoded in parallel. Tiles past that
+ * suspend in [reserve] rather than block a thread. With [cropBorders], solid borders of the image
+ * are detected once and the image is reported without them.
+ */
 class ImageDecoder @JvmOverloads constructor(
     private val cropBorders: Boolean,
     bitmapConfig: Bitmap.Config? = null
 ) : Decoder {
+    private val bitmapConfig: Bitmap.Config
+    private val lock = Object()
+    private val idleDecoders = ArrayDeque<BitmapRegionDecoder>()
+
+    // One for each decoder, so a decode holding one always finds a decoder idle or room to open one
+    private val permits = Semaphore(Runtime.getRuntime().availableProcessors().coerceIn(1, MAX_DECODERS))
+
+    private var provider: InputProvider? = null
+
+    // Region of the image shown, in image coordinates
+    private val imageRect = Rect()
+
+    @Volatile
+    private var ready = false
+
     init {
         val globalBitmapConfig = SubsamplingScaleImageView.preferredBitmapConfig
+        this.bitmapConfig = bitmapConfig ?: globalBitmapConfig ?: Bitmap.Config.ARGB_8888
     }
 
     /**
@@ -26,9 +56,21 @@ class ImageDecoder @JvmOverloads constructor(
      */
     @Throws(Exception::class)
     override fun init(context: Context, provider: InputProvider): Point {
-        TODO()
+        this.provider = provider
+        val decoder = newDecoder(provider)
+        imageRect.set(0, 0, decoder.width, decoder.height)
+        if (cropBorders) {
+            runCatching { findContentRect(decoder) }.onSuccess { imageRect.set(it) }
+        }
+        synchronized(lock) {
+            idleDecoders.addLast(decoder)
+            ready = true
+        }
+        return Point(imageRect.width(), imageRect.height())
     }
 
+    override suspend fun <T> reserve(block: () -> T): T = permits.withPermit { block() }
+
     /**
      * Decode a region of the image with the given sample size. This method is called off the UI
      * thread so it can safely load the image on the current thread. It is called from
@@ -42,7 +84,32 @@ class ImageDecoder @JvmOverloads constructor(
      * @return The decoded region. It is safe to return null if decoding fails.
      */
     override fun decodeRegion(sRect: Rect, sampleSize: Int): Bitmap {
-        TODO()
+        val region = Rect(sRect).apply {
+            offset(imageRect.left, imageRect.top)
+            if (!intersect(imageRect)) throw IllegalArgumentException("Region $sRect out of image")
+        }
+        val decoder = obtainDecoder()
+        try {
+            val width = (region.width() / sampleSize).coerceAtLeast(1)
+            val height = (region.height() / sampleSize).coerceAtLeast(1)
+            val options = BitmapFactory.Options().apply {
+                inPreferredConfig = bitmapConfig
+                inSampleSize = sampleSize
+                inMutable = true
+                inBitmap = BitmapPool.get(width, height, bitmapConfig)
+            }
+            val bitmap = try {
+                decoder.decodeRegion(region, options)
+            } catch (e: IllegalArgumentException) {
+                // The decoder may pick another config than the pooled bitmap has
+                options.inBitmap?.let { BitmapPool.put(it) } ?: throw e
+                options.inBitmap = null
+                decoder.decodeRegion(region, options)
+            }
+            return bitmap ?: throw RuntimeException("Skia image decoder returned null bitmap - image format may not be supported")
+        } finally {
+            releaseDecoder(decoder)
+        }
     }
 
     /**
@@ -50,13 +117,105 @@ class ImageDecoder @JvmOverloads constructor(
      *
      * @return true if the decoder is ready to be used.
      */
-    override val isReady: Boolean = TODO()
+    override val isReady: Boolean
+        get() = ready
 
     /**
      * This method will be called when the decoder is no longer required. It should clean up any
      * resources still in use.
      */
     override fun recycle() {
-        TODO()
+        synchronized(lock) {
+            ready = false
+            provider = null
+            idleDecoders.forEach { it.recycle() }
+            idleDecoders.clear()
+        }
+    }
+
+    private fun newDecoder(provider: InputProvider): BitmapRegionDecoder {
+        return provider.openStream().use { BitmapRegionDecoder.newInstance(it) }
+            ?: throw IOException("Image format not supported")
+    }
+
+    private fun obtainDecoder(): BitmapRegionDecoder {
+        val provider = synchronized(lock) {
+            check(ready) { "Decoder recycled" }
+            idleDecoders.removeLastOrNull()?.let { return it }
+            provider!!
+        }
+        return newDecoder(provider)
+    }
+
+    private fun releaseDecoder(decoder: BitmapRegionDecoder) {
+        synchronized(lock) {
+            if (ready) {
+                idleDecoders.addLast(decoder)
+            } else {
+                decoder.recycle()
+            }
+        }
+    }
+
+    /**
+     * Bounds of the image without its solid borders, found on a downsampled decode
+     */
+    private fun findContentRect(decoder: BitmapRegionDecoder): Rect {
+        val width = decoder.width
+        val height = decoder.height
+        var sampleSize = 1
+        while (width / sampleSize > CROP_SCAN_SIZE || height / sampleSize > CROP_SCAN_SIZE * CROP_SCAN_ASPECT) {
+            sampleSize *= 2
+        }
+        val options = BitmapFactory.Options().apply {
+            inPreferredConfig = Bitmap.Config.ARGB_8888
+            inSampleSize = sampleSize
+        }
+        val bitmap = decoder.decodeRegion(Rect(0, 0, width, height), options)
+            ?: return Rect(0, 0, width, height)
+        try {
+            val w = bitmap.width
+            val h = bitmap.height
+            val pixels = IntArray(w * h)
+            bitmap.getPixels(pixels, 0, w, 0, 0, w, h)
+            val border = pixels[0]
+            fun isBorder(color: Int) = abs(Color.red(color) - Color.red(border)) <= CROP_THRESHOLD &&
+                abs(Color.green(color) - Color.green(border)) <= CROP_THRESHOLD &&
+                abs(Color.blue(color) - Color.blue(border)) <= CROP_THRESHOLD
+            fun isBorderRow(y: Int) = (0 until w).all { isBorder(pixels[y * w + it]) }
+            fun isBorderColumn(x: Int, top: Int, bottom: Int) = (top until bottom).all { isBorder(pixels[it * w + x]) }
+
+            var top = 0
+            while (top < h && isBorderRow(top)) top++
+            // The whole image is one color, keep it as is
+            if (top == h) return Rect(0, 0, width, height)
+            var bottom = h
+            while (bottom > top && isBorderRow(bottom - 1)) bottom--
+            var left = 0
+            while (left < w && isBorderColumn(left, top, bottom)) left++
+            var right = w
+            while (right > left && isBorderColumn(right - 1, top, bottom)) right--
+
+            // Scale back, and widen by a sampled pixel so content is never cut
+            return Rect(
+                ((left - 1) * sampleSize).coerceAtLeast(0),
+                ((top - 1) * sampleSize).coerceAtLeast(0),
+                ((right + 1) * sampleSize).coerceAtMost(width),
+                ((bottom + 1) * sampleSize).coerceAtMost(height)
+            )
+        } finally {
+            bitmap.recycle()
+        }
+    }
+
+    companion object {
+        private const val MAX_DECODERS = 4
+
+        // Longest side of the image scanned for borders, taller for long strips
+        private const val CROP_SCAN_SIZE = 512
+        private const val CROP_SCAN_ASPECT = 8
+
+        // Difference of a color channel still taken as border
+        private const val CROP_THRESHOLD = 16
     }
-}
\ No newline at end of file
+}
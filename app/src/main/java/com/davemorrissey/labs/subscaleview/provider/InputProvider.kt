@@ -1,3 +1,12 @@
 package com.davemorrissey.labs.subscaleview.provider
 
-interface InputProvider
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Opens the encoded image, once for every decoder reading it.
+ */
+fun interface InputProvider {
+    @Throws(IOException::class)
+    fun openStream(): InputStream
+}
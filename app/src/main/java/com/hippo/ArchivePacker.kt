@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023 Tarsin Norbin
+ *
+ * This file is part of EhViewer
+ *
+ * EhViewer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * EhViewer is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with EhViewer.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.hippo
+
+import android.os.ParcelFileDescriptor
+import java.io.IOException
+
+/**
+ * Writes a store-only zip into [fd], entries are streamed from their files one by one
+ */
+class ArchivePacker(fd: Int) : AutoCloseable {
+    private var handle = openPacker(fd)
+
+    init {
+        if (handle == 0L) throw IOException("Can't open packer")
+    }
+
+    /**
+     * Append [src] from its current position as [name]
+     *
+     * @param mtime modification time in milliseconds
+     */
+    fun add(name: String, src: ParcelFileDescriptor, mtime: Long) {
+        check(handle != 0L)
+        if (!addEntry(handle, name, src.fd, src.statSize, mtime / 1000)) {
+            throw IOException("Can't pack $name")
+        }
+    }
+
+    /**
+     * Write the central directory, the zip is complete only if this returns
+     */
+    fun finish() {
+        check(handle != 0L)
+        val ok = closePacker(handle)
+        handle = 0
+        if (!ok) throw IOException("Can't finish packing")
+    }
+
+    override fun close() {
+        if (handle != 0L) {
+            closePacker(handle)
+            handle = 0
+        }
+    }
+
+    private external fun openPacker(fd: Int): Long
+    private external fun addEntry(handle: Long, name: String, fd: Int, size: Long, mtime: Long): Boolean
+    private external fun closePacker(handle: Long): Boolean
+}
@@ -22,14 +22,25 @@ import android.system.Int64Ref
 import android.system.Os
 import java.io.FileDescriptor
 
-private fun sendFileTotally(from: FileDescriptor, to: FileDescriptor) {
-    Os.sendfile(to, from, Int64Ref(0), Long.MAX_VALUE)
+private fun sendFileTotally(from: FileDescriptor, to: FileDescriptor): Long {
+    val offset = Int64Ref(0)
+    // sendfile() may transfer less than requested, loop until EOF
+    do {
+        val sent = Os.sendfile(to, from, offset, Long.MAX_VALUE)
+    } while (sent > 0)
+    return offset.value
 }
 
-infix fun ParcelFileDescriptor.sendTo(fd: FileDescriptor) {
-    sendFileTotally(fileDescriptor, fd)
+/**
+ * @return bytes sent
+ */
+infix fun ParcelFileDescriptor.sendTo(fd: FileDescriptor): Long {
+    return sendFileTotally(fileDescriptor, fd)
 }
 
-infix fun ParcelFileDescriptor.sendTo(fd: ParcelFileDescriptor) {
-    sendFileTotally(fileDescriptor, fd.fileDescriptor)
+/**
+ * @return bytes sent
+ */
+infix fun ParcelFileDescriptor.sendTo(fd: ParcelFileDescriptor): Long {
+    return sendFileTotally(fileDescriptor, fd.fileDescriptor)
 }
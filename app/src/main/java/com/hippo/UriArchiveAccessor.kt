@@ -20,51 +20,227 @@ package com.hippo
 import android.content.Context
 import android.graphics.ImageDecoder
 import android.net.Uri
+import android.system.Os
 import android.util.Log
+import com.davemorrissey.labs.subscaleview.provider.InputProvider
 import com.hippo.image.Image
-import java.io.FileDescriptor
+import com.hippo.yorozuya.MathUtils
+import com.hippo.yorozuya.OSUtils
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
 import java.nio.ByteBuffer
+import java.util.UUID
 
-class UriArchiveAccessor(ctx: Context, private val uri: Uri) {
+class UriArchiveAccessor(private val ctx: Context, private val uri: Uri) {
     val pfd by lazy { ctx.contentResolver.openFileDescriptor(uri, "r")!! }
+
+    // Native archive state, 0 if not opened
+    @Volatile
+    private var handle = 0L
+
+    // Entry sources not closed yet, they may outlive the reader in the image cache
+    private var openSources = 0
+    private var closing = false
+
     fun open(): Int {
         Log.d(DEBUG_TAG, "Open archive $uri")
-        return openArchive(pfd.fd, pfd.statSize)
+        handle = openArchive(pfd.fd, pfd.statSize, obtainIndexCacheFile().path, POOL_BUDGET)
+        return if (handle != 0L) getEntryCount(handle) else 0
+    }
+
+    // Entry table cache of this archive, a changed file gets a new one
+    private fun obtainIndexCacheFile(): File {
+        val stat = Os.fstat(pfd.fileDescriptor)
+        val key = "$uri:${stat.st_size}:${stat.st_mtime}"
+        val dir = File(ctx.cacheDir, INDEX_CACHE_DIR).apply { mkdirs() }
+        val file = File(dir, UUID.nameUUIDFromBytes(key.toByteArray()).toString())
+        if (file.exists()) {
+            file.setLastModified(System.currentTimeMillis())
+        } else {
+            // Keep the recently used ones
+            dir.listFiles()?.sortedByDescending { it.lastModified() }?.drop(INDEX_CACHE_MAX_COUNT - 1)
+                ?.forEach { it.delete() }
+        }
+        return file
+    }
+
+    /**
+     * Stream entry [index] into [fd]
+     */
+    fun extractToFd(index: Int, fd: Int) = extractToFd(handle, index, fd)
+
+    /**
+     * Receives entries of [extractRange], called on the extracting thread
+     */
+    interface ExtractCallback {
+        /**
+         * @return fd to write entry [index] to, or -1 to skip it
+         */
+        fun openEntry(index: Int): Int
+
+        /**
+         * Entry [index] is written, or failed
+         *
+         * @return false to stop
+         */
+        fun closeEntry(index: Int, success: Boolean): Boolean
+    }
+
+    /**
+     * Stream entries in [range] in archive order, so a solid archive is read in one pass. The
+     * archive isn't closed until this returns.
+     *
+     * @return entries written
+     */
+    fun extractRange(range: IntRange, callback: ExtractCallback): Int {
+        synchronized(this) {
+            if (closing) return 0
+            openSources++
+        }
+        try {
+            return extractRange(handle, range.first, range.last, callback)
+        } finally {
+            releaseSource(range.first, false)
+        }
     }
 
-    private external fun openArchive(fd: Int, size: Long): Int
-    private external fun extractToByteBuffer(index: Int): ByteBuffer?
-    external fun extractToFd(index: Int, fd: Int)
-    external fun getFilename(index: Int): String
-    external fun needPassword(): Boolean
-    external fun providePassword(str: String): Boolean
-    private external fun closeArchive()
+    fun getFilename(index: Int): String = getFilename(handle, index)
+    fun needPassword() = needPassword(handle)
+    fun providePassword(str: String) = providePassword(handle, str)
+
+    /**
+     * Extract entry [index] ahead into native memory, so [getImageSource] returns it at once
+     */
+    fun prefetch(index: Int) = prefetch(handle, index)
+
+    /**
+     * Drop entries extracted ahead which are out of [range]
+     */
+    fun evictOutside(range: IntRange) = evictOutside(handle, range.first, range.last)
+
+    /**
+     * Entries can only be extracted fast in index order, e.g. solid 7z
+     */
+    val needStreamOrder by lazy { needStreamOrder(handle) }
+
+    /**
+     * Counters of the native page cache, extracted entries kept within [PoolStats.budget] bytes
+     */
+    class PoolStats(val hits: Long, val misses: Long, val evictions: Long, val bytes: Long, val budget: Long) {
+        override fun toString() = "hits $hits, misses $misses, evictions $evictions, $bytes/$budget bytes"
+    }
+
+    val poolStats: PoolStats?
+        get() = handle.takeIf { it != 0L }?.let { getPoolStats(it) }?.let {
+            PoolStats(it[0], it[1], it[2], it[3], it[4])
+        }
+
+    private external fun openArchive(fd: Int, size: Long, cachePath: String, budget: Long): Long
+    private external fun getEntryCount(handle: Long): Int
+    private external fun extractToByteBuffer(handle: Long, index: Int): ByteBuffer?
+    private external fun extractToFd(handle: Long, index: Int, fd: Int): Boolean
+    private external fun extractRange(handle: Long, first: Int, last: Int, callback: ExtractCallback): Int
+    private external fun getFilename(handle: Long, index: Int): String
+    private external fun needPassword(handle: Long): Boolean
+    private external fun providePassword(handle: Long, str: String): Boolean
+    private external fun prefetch(handle: Long, index: Int): Boolean
+    private external fun evictOutside(handle: Long, first: Int, last: Int)
+    private external fun needStreamOrder(handle: Long): Boolean
+    private external fun getPoolStats(handle: Long): LongArray?
+    private external fun releaseByteBuffer(handle: Long, index: Int)
+    private external fun closeArchive(handle: Long)
+
+    /**
+     * Close the archive, deferred until every entry source handed out is closed, as freeing the
+     * handle unmaps their buffers
+     */
+    @Synchronized
     fun close() {
-        closeArchive()
+        if (closing) return
+        closing = true
+        if (openSources == 0) closeNow()
+    }
+
+    private fun closeNow() {
+        if (handle != 0L) {
+            Log.d(DEBUG_TAG, "Page cache of $uri: $poolStats")
+            closeArchive(handle)
+            handle = 0
+        }
         pfd.close()
         Log.d(DEBUG_TAG, "Close archive $uri successfully!")
     }
 
     fun getImageSource(index: Int): Image.CloseableSource? {
-        val buffer = extractToByteBuffer(index)
-        buffer ?: return null
+        synchronized(this) {
+            if (closing) return null
+            openSources++
+        }
+        val buffer = try {
+            extractToByteBuffer(handle, index)
+        } catch (e: Throwable) {
+            releaseSource(index, false)
+            throw e
+        }
+        if (buffer == null) {
+            releaseSource(index, false)
+            return null
+        }
         check(buffer.isDirect)
         Image.rewriteGifSource(buffer)
-        val source = ImageDecoder.createSource(buffer)
-        return object : Image.CloseableSource {
-            override val source: ImageDecoder.Source
-                get() = source
-
-            override fun close() {
-                releaseByteBuffer(buffer)
-            }
+        return EntrySource(buffer, index)
+    }
+
+    @Synchronized
+    private fun releaseSource(index: Int, extracted: Boolean) {
+        if (extracted && handle != 0L) releaseByteBuffer(handle, index)
+        if (--openSources == 0 && closing) closeNow()
+    }
+
+    private inner class EntrySource(private val buffer: ByteBuffer, private val index: Int) : Image.CloseableSource {
+        private var closed = false
+
+        override val source: ImageDecoder.Source = ImageDecoder.createSource(buffer)
+
+        // The buffer is unmapped once released, streams must not read it after that
+        override val provider = InputProvider { EntryInputStream(buffer.duplicate(), this) }
+
+        @Synchronized
+        fun <T> read(block: () -> T): T {
+            if (closed || handle == 0L) throw IOException("Entry $index released")
+            return block()
+        }
+
+        @Synchronized
+        override fun close() {
+            if (closed) return
+            closed = true
+            releaseSource(index, true)
         }
     }
 
-    companion object {
-        @JvmStatic
-        private external fun releaseByteBuffer(buffer: ByteBuffer)
+    private class EntryInputStream(private val buffer: ByteBuffer, private val src: EntrySource) : InputStream() {
+        override fun read() = src.read {
+            if (buffer.hasRemaining()) buffer.get().toInt() and 0xff else -1
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int) = src.read {
+            if (!buffer.hasRemaining()) return@read -1
+            val n = minOf(len, buffer.remaining())
+            buffer.get(b, off, n)
+            n
+        }
+
+        override fun available() = buffer.remaining()
     }
 }
 
 private const val DEBUG_TAG = "UriArchiveAccessor"
+private const val INDEX_CACHE_DIR = "archive_index"
+private const val INDEX_CACHE_MAX_COUNT = 100
+private const val MIN_POOL_BUDGET = 32L * 1024 * 1024
+private const val MAX_POOL_BUDGET = 128L * 1024 * 1024
+
+// Encoded pages are far smaller than decoded ones, a quarter of the image cache holds plenty
+private val POOL_BUDGET = MathUtils.clamp(OSUtils.getTotalMemory() / 64, MIN_POOL_BUDGET, MAX_POOL_BUDGET)
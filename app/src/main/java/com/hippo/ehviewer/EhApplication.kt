@@ -44,6 +44,7 @@ import com.hippo.util.ReadableTime
 import com.hippo.yorozuya.FileUtils
 import com.hippo.yorozuya.IntIdGenerator
 import eu.kanade.tachiyomi.core.preference.AndroidPreferenceStore
+import eu.kanade.tachiyomi.ui.reader.loader.ImageCache
 import eu.kanade.tachiyomi.ui.reader.setting.ReaderPreferences
 import eu.kanade.tachiyomi.util.lang.launchIO
 import io.ktor.client.HttpClient
@@ -154,6 +155,7 @@ class EhApplication : Application(), DefaultLifecycleObserver, ImageLoaderFactor
         if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
             galleryDetailCache.evictAll()
         }
+        ImageCache.onTrimMemory(level)
     }
 
     fun putGlobalStuff(o: Any): Int {
@@ -135,10 +135,14 @@ object Settings {
     private val DEFAULT_DOWNLOAD_LABEL: String? = null
     private const val KEY_MULTI_THREAD_DOWNLOAD = "download_thread"
     private const val DEFAULT_MULTI_THREAD_DOWNLOAD = 3
+    private const val KEY_MULTI_GALLERY_DOWNLOAD = "download_gallery"
+    private const val DEFAULT_MULTI_GALLERY_DOWNLOAD = 1
     private const val KEY_PRELOAD_IMAGE = "preload_image"
     private const val DEFAULT_PRELOAD_IMAGE = 5
     private const val KEY_DOWNLOAD_ORIGIN_IMAGE = "download_origin_image"
     private const val DEFAULT_DOWNLOAD_ORIGIN_IMAGE = false
+    private const val KEY_PACK_FINISHED_DOWNLOAD = "pack_finished_download"
+    private const val DEFAULT_PACK_FINISHED_DOWNLOAD = false
 
     /********************
      * Favorites
@@ -452,12 +456,16 @@ object Settings {
 
     val multiThreadDownload: Int
         get() = getIntFromStr(KEY_MULTI_THREAD_DOWNLOAD, DEFAULT_MULTI_THREAD_DOWNLOAD)
+    val multiGalleryDownload: Int
+        get() = getIntFromStr(KEY_MULTI_GALLERY_DOWNLOAD, DEFAULT_MULTI_GALLERY_DOWNLOAD)
     val downloadDelay: Int
         get() = getIntFromStr(KEY_DOWNLOAD_DELAY, DEFAULT_DOWNLOAD_DELAY)
     val preloadImage: Int
         get() = getIntFromStr(KEY_PRELOAD_IMAGE, DEFAULT_PRELOAD_IMAGE)
     val downloadOriginImage: Boolean
         get() = getBoolean(KEY_DOWNLOAD_ORIGIN_IMAGE, DEFAULT_DOWNLOAD_ORIGIN_IMAGE)
+    val packFinishedDownload: Boolean
+        get() = getBoolean(KEY_PACK_FINISHED_DOWNLOAD, DEFAULT_PACK_FINISHED_DOWNLOAD)
     val favCat: Array<String>
         get() = arrayOf(
             sSettingsPre.getString(KEY_FAV_CAT_0, DEFAULT_FAV_CAT_0)!!,
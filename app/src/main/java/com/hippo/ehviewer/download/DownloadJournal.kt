@@ -0,0 +1,254 @@
+package com.hippo.ehviewer.download
+
+import android.util.Log
+import com.hippo.ehviewer.EhApplication.Companion.application
+import com.hippo.ehviewer.dao.DownloadInfo
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.BitSet
+
+/**
+ * Append-only log of download progress, surviving process death.
+ *
+ * Every page written into a download dir and every queue transition of [DownloadManager] is
+ * appended as a fixed size record. The log is replayed on first access, so an interrupted
+ * download knows its finished pages without listing its dir, and the download queue can be
+ * restored. When most records are obsolete, the log is compacted to the replayed state.
+ *
+ * Callers only update the state in memory, often on the main thread. Records are written, flushed
+ * and compacted in batches by a single writer off it.
+ */
+object DownloadJournal {
+    private const val TAG = "DownloadJournal"
+    private const val OP_PAGE_FINISHED: Byte = 0
+    private const val OP_PAGE_REMOVED: Byte = 1
+    private const val OP_STATE: Byte = 2
+    private const val OP_DELETED: Byte = 3
+    private const val COMPACT_MIN_RECORDS = 1024
+
+    // op, gid, arg
+    private const val RECORD_SIZE = 1 + 8 + 4
+
+    private val mFile = File(application.filesDir, "download.journal")
+
+    // gid -> finished pages, of galleries not finished yet
+    private val mPages = HashMap<Long, BitSet>()
+
+    // gids waiting or downloading, in queue order
+    private val mQueue = LinkedHashSet<Long>()
+
+    private class Record(val op: Byte, val gid: Long, val arg: Int)
+
+    // Sent with the state locked, in the order they are applied
+    private val mRecordChannel = Channel<Record>(Channel.UNLIMITED)
+
+    // Touched by the writer only, after replay
+    private var mOut: DataOutputStream? = null
+    private var mRecords = 0
+
+    init {
+        replay()
+        CoroutineScope(Dispatchers.IO.limitedParallelism(1)).launch { writeRecords() }
+    }
+
+    private fun replay() {
+        if (!mFile.exists()) return
+        runCatching {
+            DataInputStream(BufferedInputStream(mFile.inputStream())).use {
+                while (true) {
+                    val op = it.readByte()
+                    val gid = it.readLong()
+                    val arg = it.readInt()
+                    apply(op, gid, arg)
+                    mRecords++
+                }
+            }
+        }.onFailure {
+            // A torn record at the tail is expected after a crash
+            if (it !is EOFException) Log.e(TAG, "Can't replay journal", it)
+        }
+        // Drop the torn record, or records appended later would be misaligned
+        val valid = mRecords.toLong() * RECORD_SIZE
+        if (mFile.length() != valid) {
+            runCatching { RandomAccessFile(mFile, "rw").use { it.setLength(valid) } }
+        }
+        Log.d(TAG, "Replayed $mRecords records, ${mPages.size} galleries, ${mQueue.size} queued")
+        if (needCompact(mRecords)) compact(mPages, mQueue)
+    }
+
+    private fun apply(op: Byte, gid: Long, arg: Int) {
+        when (op) {
+            OP_PAGE_FINISHED -> mPages.getOrPut(gid) { BitSet() }.set(arg)
+            OP_PAGE_REMOVED -> mPages[gid]?.clear(arg)
+            OP_STATE -> {
+                when (arg) {
+                    DownloadInfo.STATE_WAIT, DownloadInfo.STATE_DOWNLOAD -> mQueue.add(gid)
+                    else -> mQueue.remove(gid)
+                }
+                if (arg == DownloadInfo.STATE_FINISH) mPages.remove(gid)
+            }
+
+            OP_DELETED -> {
+                mQueue.remove(gid)
+                mPages.remove(gid)
+            }
+        }
+    }
+
+    // Called with the state locked
+    private fun append(op: Byte, gid: Long, arg: Int) {
+        apply(op, gid, arg)
+        mRecordChannel.trySend(Record(op, gid, arg))
+    }
+
+    private suspend fun writeRecords() {
+        for (first in mRecordChannel) {
+            val batch = mutableListOf(first)
+            // Records sent before the snapshot are in the batch, so the snapshot covers them
+            val snapshot = synchronized(this) {
+                while (true) batch += mRecordChannel.tryReceive().getOrNull() ?: break
+                if (needCompact(mRecords + batch.size)) {
+                    mPages.mapValues { it.value.clone() as BitSet } to mQueue.toList()
+                } else {
+                    null
+                }
+            }
+            // The old log is intact if compacting fails, append to it then
+            if (snapshot == null || !compact(snapshot.first, snapshot.second)) write(batch)
+        }
+    }
+
+    private fun write(batch: List<Record>) {
+        runCatching {
+            val out = mOut ?: DataOutputStream(BufferedOutputStream(FileOutputStream(mFile, true))).also { mOut = it }
+            batch.forEach {
+                out.writeByte(it.op.toInt())
+                out.writeLong(it.gid)
+                out.writeInt(it.arg)
+            }
+            // Flushed data survives process death, it's enough for resuming
+            out.flush()
+            mRecords += batch.size
+        }.onFailure {
+            Log.e(TAG, "Can't append to journal", it)
+            closeOut()
+        }
+    }
+
+    // Called with the state locked
+    private fun liveRecords(): Int {
+        return mQueue.size + mPages.values.sumOf { it.cardinality() }
+    }
+
+    // Called with the state locked
+    private fun needCompact(records: Int): Boolean {
+        return records >= COMPACT_MIN_RECORDS && records >= liveRecords() * 2
+    }
+
+    /**
+     * Rewrite the log as [finished] pages and [queue], false if failed
+     */
+    private fun compact(finished: Map<Long, BitSet>, queue: Collection<Long>): Boolean {
+        closeOut()
+        val tmp = File(mFile.path + ".tmp")
+        return runCatching {
+            var records = 0
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                fun write(op: Byte, gid: Long, arg: Int) {
+                    out.writeByte(op.toInt())
+                    out.writeLong(gid)
+                    out.writeInt(arg)
+                    records++
+                }
+                finished.forEach { (gid, pages) ->
+                    var index = pages.nextSetBit(0)
+                    while (index >= 0) {
+                        write(OP_PAGE_FINISHED, gid, index)
+                        index = pages.nextSetBit(index + 1)
+                    }
+                }
+                queue.forEach { write(OP_STATE, it, DownloadInfo.STATE_WAIT) }
+            }
+            if (!tmp.renameTo(mFile)) throw IOException("Can't rename $tmp")
+            Log.d(TAG, "Compacted $mRecords records to $records")
+            mRecords = records
+        }.onFailure {
+            Log.e(TAG, "Can't compact journal", it)
+            tmp.delete()
+        }.isSuccess
+    }
+
+    private fun closeOut() {
+        runCatching { mOut?.close() }
+        mOut = null
+    }
+
+    /**
+     * Page [index] of [gid] is in its download dir
+     */
+    @Synchronized
+    fun putPageFinished(gid: Long, index: Int) {
+        if (mPages[gid]?.get(index) == true) return
+        append(OP_PAGE_FINISHED, gid, index)
+    }
+
+    @Synchronized
+    fun putPageRemoved(gid: Long, index: Int) {
+        if (mPages[gid]?.get(index) != true) return
+        append(OP_PAGE_REMOVED, gid, index)
+    }
+
+    /**
+     * Record a queue transition, finished pages are dropped once a download finishes
+     */
+    @Synchronized
+    fun putState(gid: Long, state: Int) {
+        if (isStateChanged(gid, state)) append(OP_STATE, gid, state)
+    }
+
+    /**
+     * Record queue transitions of [infos], written in one batch
+     */
+    @Synchronized
+    fun putStates(infos: Collection<DownloadInfo>) {
+        infos.forEach { if (isStateChanged(it.gid, it.state)) append(OP_STATE, it.gid, it.state) }
+    }
+
+    private fun isStateChanged(gid: Long, state: Int): Boolean {
+        val queued = state == DownloadInfo.STATE_WAIT || state == DownloadInfo.STATE_DOWNLOAD
+        val dropPages = state == DownloadInfo.STATE_FINISH && gid in mPages
+        return queued != (gid in mQueue) || dropPages
+    }
+
+    @Synchronized
+    fun putDeleted(gid: Long) {
+        if (gid !in mQueue && gid !in mPages) return
+        append(OP_DELETED, gid, 0)
+    }
+
+    /**
+     * Finished pages of [gid] recorded before, null if unknown
+     */
+    @Synchronized
+    fun getFinishedPages(gid: Long): BitSet? {
+        return mPages[gid]?.clone() as BitSet?
+    }
+
+    /**
+     * Downloads which were waiting or running when the process died, in queue order
+     */
+    @get:Synchronized
+    val queue: List<Long>
+        get() = mQueue.toList()
+}
@@ -16,10 +16,10 @@
 package com.hippo.ehviewer.download
 
 import android.util.Log
-import android.util.SparseLongArray
 import androidx.collection.LongSparseArray
 import androidx.collection.keyIterator
 import com.hippo.ehviewer.EhDB
+import com.hippo.ehviewer.Settings
 import com.hippo.ehviewer.client.data.GalleryInfo
 import com.hippo.ehviewer.dao.DownloadInfo
 import com.hippo.ehviewer.dao.DownloadLabel
@@ -37,9 +37,11 @@ import com.hippo.yorozuya.collect.LongList
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
 import java.util.LinkedList
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.contracts.contract
 
-object DownloadManager : OnSpiderListener {
+object DownloadManager {
     // All download info list
     private val mAllInfoList: LinkedList<DownloadInfo>
 
@@ -61,8 +63,12 @@ object DownloadManager : OnSpiderListener {
     private val mDownloadInfoListeners: MutableList<DownloadInfoListener?>
     private val mNotifyTaskPool = ConcurrentPool<NotifyTask?>(5)
     private var mDownloadListener: DownloadListener? = null
-    private var mCurrentTask: DownloadInfo? = null
-    private var mCurrentSpider: SpiderQueen? = null
+
+    // Store downloads running now, up to Settings.multiGalleryDownload
+    private val mActiveTasks = LinkedList<DownloadTask>()
+
+    // Downloads queued when the process died, restored if download service is restarted
+    private var mInterruptedList: List<DownloadInfo>
 
     init {
 
@@ -115,6 +121,10 @@ object DownloadManager : OnSpiderListener {
         mWaitList = LinkedList()
         mSpeedReminder = SpeedReminder()
         mDownloadInfoListeners = ArrayList()
+
+        // Journal keeps their queued state until they are restored, or they would be lost
+        // when the process is killed again before that
+        mInterruptedList = DownloadJournal.queue.mapNotNull { allInfoMap[it] }
     }
 
     private fun getInfoListForLabel(label: String?): LinkedList<DownloadInfo>? {
@@ -176,19 +186,18 @@ object DownloadManager : OnSpiderListener {
         mDownloadListener = listener
     }
 
-    private fun ensureDownload() {
-        if (mCurrentTask != null) {
-            // Only one download
-            return
-        }
+    private fun findActiveTask(gid: Long): DownloadTask? {
+        return mActiveTasks.find { it.info.gid == gid }
+    }
 
-        // Get download from wait list
-        if (!mWaitList.isEmpty()) {
+    private fun ensureDownload() {
+        // Fill free download slots from wait list
+        while (mActiveTasks.size < Settings.multiGalleryDownload && !mWaitList.isEmpty()) {
             val info = mWaitList.removeFirst()
             val spider = SpiderQueen.obtainSpiderQueen(info, SpiderQueen.MODE_DOWNLOAD)
-            mCurrentTask = info
-            mCurrentSpider = spider
-            spider.addOnSpiderListener(this)
+            val task = DownloadTask(info, spider)
+            mActiveTasks.add(task)
+            spider.addOnSpiderListener(task)
             info.state = DownloadInfo.STATE_DOWNLOAD
             info.speed = -1
             info.remaining = -1
@@ -198,6 +207,7 @@ object DownloadManager : OnSpiderListener {
             info.legacy = -1
             // Update in DB
             EhDB.putDownloadInfo(info)
+            DownloadJournal.putState(info.gid, info.state)
             // Start speed count
             mSpeedReminder.start()
             // Notify start downloading
@@ -215,8 +225,8 @@ object DownloadManager : OnSpiderListener {
     }
 
     fun startDownload(galleryInfo: GalleryInfo, label: String?) {
-        if (mCurrentTask != null && mCurrentTask!!.gid == galleryInfo.gid) {
-            // It is current task
+        if (findActiveTask(galleryInfo.gid) != null) {
+            // It is downloading
             return
         }
 
@@ -230,6 +240,7 @@ object DownloadManager : OnSpiderListener {
                 mWaitList.add(info)
                 // Update in DB
                 EhDB.putDownloadInfo(info)
+                DownloadJournal.putState(info.gid, info.state)
                 // Notify state update
                 val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
                 if (list != null) {
@@ -264,6 +275,7 @@ object DownloadManager : OnSpiderListener {
 
             // Save to
             EhDB.putDownloadInfo(info)
+            DownloadJournal.putState(info.gid, info.state)
 
             // Notify
             for (l in mDownloadInfoListeners) {
@@ -278,7 +290,7 @@ object DownloadManager : OnSpiderListener {
     }
 
     fun startRangeDownload(gidList: LongList) {
-        var update = false
+        val infos = ArrayList<DownloadInfo>(gidList.size)
         for (i in 0 until gidList.size) {
             val gid = gidList[i]
             val info = mAllInfoMap[gid]
@@ -287,49 +299,65 @@ object DownloadManager : OnSpiderListener {
                 continue
             }
             if (info.state == DownloadInfo.STATE_NONE || info.state == DownloadInfo.STATE_FAILED || info.state == DownloadInfo.STATE_FINISH) {
-                update = true
-                // Set state DownloadInfo.STATE_WAIT
-                info.state = DownloadInfo.STATE_WAIT
-                // Add to wait list
-                mWaitList.add(info)
-                // Update in DB
-                EhDB.putDownloadInfo(info)
+                infos.add(info)
             }
         }
-        if (update) {
-            // Notify Listener
-            for (l in mDownloadInfoListeners) {
-                l!!.onUpdateAll()
-            }
-            // Ensure download
-            ensureDownload()
-        }
+        waitRange(infos)
     }
 
     fun startAllDownload() {
-        var update = false
         // Start all STATE_NONE and STATE_FAILED item
-        for (info in mAllInfoList) {
-            if (info.state == DownloadInfo.STATE_NONE || info.state == DownloadInfo.STATE_FAILED) {
-                update = true
-                // Set state DownloadInfo.STATE_WAIT
-                info.state = DownloadInfo.STATE_WAIT
-                // Add to wait list
-                mWaitList.add(info)
-                // Update in DB
-                EhDB.putDownloadInfo(info)
+        waitRange(
+            mAllInfoList.filter {
+                it.state == DownloadInfo.STATE_NONE || it.state == DownloadInfo.STATE_FAILED
             }
+        )
+    }
+
+    // Put infos into wait list in one transition
+    private fun waitRange(infos: List<DownloadInfo>) {
+        if (infos.isEmpty()) return
+        for (info in infos) {
+            // Set state DownloadInfo.STATE_WAIT
+            info.state = DownloadInfo.STATE_WAIT
         }
-        if (update) {
-            // Notify Listener
-            for (l in mDownloadInfoListeners) {
-                l!!.onUpdateAll()
-            }
-            // Ensure download
-            ensureDownload()
+        // Add to wait list
+        mWaitList.addAll(infos)
+        // Update in DB
+        putDownloadStates(infos)
+        // Notify Listener
+        notifyUpdateRange(infos)
+        // Ensure download
+        ensureDownload()
+    }
+
+    // One DB transaction and one journal write for all
+    private fun putDownloadStates(infos: List<DownloadInfo>) {
+        if (infos.isEmpty()) return
+        EhDB.updateDownloadInfo(infos)
+        DownloadJournal.putStates(infos)
+    }
+
+    private fun notifyUpdateRange(infos: List<DownloadInfo>) {
+        if (infos.isEmpty()) return
+        for (l in mDownloadInfoListeners) {
+            l!!.onUpdateRange(infos)
         }
     }
 
+    /**
+     * Put downloads interrupted by process death back into wait list, in their queue order
+     */
+    fun restoreInterruptedDownload() {
+        val infos = mInterruptedList.filter {
+            it.state == DownloadInfo.STATE_NONE && findActiveTask(it.gid) == null
+        }
+        mInterruptedList = emptyList()
+        Log.d(TAG, "Restore ${infos.size} interrupted downloads")
+        // Journals them as waiting again
+        waitRange(infos)
+    }
+
     @JvmOverloads
     fun addDownload(downloadInfoList: List<DownloadInfo>, notify: Boolean = true) {
         for (info in downloadInfoList) {
@@ -438,8 +466,9 @@ object DownloadManager : OnSpiderListener {
     }
 
     fun stopCurrentDownload() {
-        val info = stopCurrentDownloadInternal()
-        if (info != null) {
+        if (mActiveTasks.isEmpty()) return
+        for (task in mActiveTasks.toList()) {
+            val info = stopActiveDownloadInternal(task)
             // Update listener
             val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
             if (list != null) {
@@ -447,18 +476,16 @@ object DownloadManager : OnSpiderListener {
                     l!!.onUpdate(info, list)
                 }
             }
-            // Ensure download
-            ensureDownload()
         }
+        // Ensure download
+        ensureDownload()
     }
 
     fun stopRangeDownload(gidList: LongList) {
-        stopRangeDownloadInternal(gidList)
+        val infos = stopRangeDownloadInternal(gidList)
 
         // Update listener
-        for (l in mDownloadInfoListeners) {
-            l!!.onUpdateAll()
-        }
+        notifyUpdateRange(infos)
 
         // Ensure download
         ensureDownload()
@@ -466,20 +493,19 @@ object DownloadManager : OnSpiderListener {
 
     fun stopAllDownload() {
         // Stop all in wait list
-        for (info in mWaitList) {
+        val infos = ArrayList<DownloadInfo>(mWaitList)
+        for (info in infos) {
             info.state = DownloadInfo.STATE_NONE
-            // Update in DB
-            EhDB.putDownloadInfo(info)
         }
         mWaitList.clear()
+        // Update in DB
+        putDownloadStates(infos)
 
-        // Stop current
-        stopCurrentDownloadInternal()
+        // Stop all running
+        mActiveTasks.toList().forEach { infos.add(stopActiveDownloadInternal(it)) }
 
         // Notify mDownloadInfoListener
-        for (l in mDownloadInfoListeners) {
-            l!!.onUpdateAll()
-        }
+        notifyUpdateRange(infos)
     }
 
     fun deleteDownload(gid: Long) {
@@ -488,6 +514,7 @@ object DownloadManager : OnSpiderListener {
         if (info != null) {
             // Remove from DB
             EhDB.removeDownloadInfo(info)
+            DownloadJournal.putDeleted(info.gid)
 
             // Remove all list and map
             mAllInfoList.remove(info)
@@ -523,6 +550,7 @@ object DownloadManager : OnSpiderListener {
 
             // Remove from DB
             EhDB.removeDownloadInfo(info)
+            DownloadJournal.putDeleted(info.gid)
 
             // Remove from all info map
             mAllInfoList.remove(info)
@@ -598,10 +626,9 @@ object DownloadManager : OnSpiderListener {
     // Update listener
     // No ensureDownload
     private fun stopDownloadInternal(gid: Long): DownloadInfo? {
-        // Check current task
-        if (mCurrentTask != null && mCurrentTask!!.gid == gid) {
-            // Stop current
-            return stopCurrentDownloadInternal()
+        // Check running tasks
+        findActiveTask(gid)?.let {
+            return stopActiveDownloadInternal(it)
         }
         val iterator = mWaitList.iterator()
         while (iterator.hasNext()) {
@@ -613,6 +640,7 @@ object DownloadManager : OnSpiderListener {
                 info.state = DownloadInfo.STATE_NONE
                 // Update in DB
                 EhDB.putDownloadInfo(info)
+                DownloadJournal.putState(info.gid, info.state)
                 return info
             }
         }
@@ -621,26 +649,16 @@ object DownloadManager : OnSpiderListener {
 
     // Update in DB
     // Update mDownloadListener
-    private fun stopCurrentDownloadInternal(): DownloadInfo? {
-        val info = mCurrentTask
-        val spider = mCurrentSpider
+    private fun stopActiveDownloadInternal(task: DownloadTask): DownloadInfo {
+        val info = task.info
         // Release spider
-        if (spider != null) {
-            spider.removeOnSpiderListener(this@DownloadManager)
-            SpiderQueen.releaseSpiderQueen(spider, SpiderQueen.MODE_DOWNLOAD)
-        }
-        mCurrentTask = null
-        mCurrentSpider = null
-        // Stop speed reminder
-        mSpeedReminder.stop()
-        if (info == null) {
-            return null
-        }
+        releaseTask(task)
 
         // Update state
         info.state = DownloadInfo.STATE_NONE
         // Update in DB
         EhDB.putDownloadInfo(info)
+        DownloadJournal.putState(info.gid, info.state)
         // Listener
         if (mDownloadListener != null) {
             mDownloadListener!!.onCancel(info)
@@ -650,33 +668,34 @@ object DownloadManager : OnSpiderListener {
 
     // Update in DB
     // Update mDownloadListener
-    private fun stopRangeDownloadInternal(gidList: LongList) {
-        // Two way
-        if (gidList.size < mWaitList.size) {
-            for (i in 0 until gidList.size) {
-                stopDownloadInternal(gidList[i])
-            }
-        } else {
-            // Check current task
-            if (mCurrentTask != null && gidList.contains(mCurrentTask!!.gid)) {
-                // Stop current
-                stopCurrentDownloadInternal()
-            }
+    // Return stopped infos
+    private fun stopRangeDownloadInternal(gidList: LongList): List<DownloadInfo> {
+        val gidSet = HashSet<Long>(gidList.size)
+        for (i in 0 until gidList.size) {
+            gidSet.add(gidList[i])
+        }
+        val infos = ArrayList<DownloadInfo>()
 
-            // Check all in wait list
-            val iterator = mWaitList.iterator()
-            while (iterator.hasNext()) {
-                val info = iterator.next()
-                if (gidList.contains(info.gid)) {
-                    // Remove from wait list
-                    iterator.remove()
-                    // Update state
-                    info.state = DownloadInfo.STATE_NONE
-                    // Update in DB
-                    EhDB.putDownloadInfo(info)
-                }
+        // Check all in wait list
+        val iterator = mWaitList.iterator()
+        while (iterator.hasNext()) {
+            val info = iterator.next()
+            if (info.gid in gidSet) {
+                // Remove from wait list
+                iterator.remove()
+                // Update state
+                info.state = DownloadInfo.STATE_NONE
+                infos.add(info)
             }
         }
+        // Update in DB
+        putDownloadStates(infos)
+
+        // Check running tasks
+        mActiveTasks.filter { it.info.gid in gidSet }.forEach {
+            infos.add(stopActiveDownloadInternal(it))
+        }
+        return infos
     }
 
     /**
@@ -802,79 +821,103 @@ object DownloadManager : OnSpiderListener {
     }
 
     val isIdle: Boolean
-        get() = mCurrentTask == null && mWaitList.isEmpty()
+        get() = mActiveTasks.isEmpty() && mWaitList.isEmpty()
 
-    override fun onGetPages(pages: Int) {
-        var task = mNotifyTaskPool.pop()
-        if (task == null) {
-            task = NotifyTask()
-        }
-        task.setOnGetPagesData(pages)
-        SimpleHandler.getInstance().post(task)
-    }
+    /**
+     * Download info of all running downloads
+     */
+    val downloadingInfoList: List<DownloadInfo>
+        get() = mActiveTasks.map { it.info }
 
-    override fun onGet509(index: Int) {
-        var task = mNotifyTaskPool.pop()
-        if (task == null) {
-            task = NotifyTask()
+    /**
+     * Sum of the speed of all running downloads, in bytes per second
+     */
+    val downloadSpeed: Long
+        get() = mActiveTasks.sumOf { it.info.speed.coerceAtLeast(0) }
+
+    // Release spider, stop speed reminder if nothing is running
+    private fun releaseTask(task: DownloadTask) {
+        mActiveTasks.remove(task)
+        task.spider.removeOnSpiderListener(task)
+        SpiderQueen.releaseSpiderQueen(task.spider, SpiderQueen.MODE_DOWNLOAD)
+        if (mActiveTasks.isEmpty()) {
+            mSpeedReminder.stop()
         }
-        task.setOnGet509Data(index)
-        SimpleHandler.getInstance().post(task)
     }
 
-    override fun onPageDownload(
-        index: Int,
-        contentLength: Long,
-        receivedSize: Long,
-        bytesRead: Int
-    ) {
-        var task = mNotifyTaskPool.pop()
-        if (task == null) {
-            task = NotifyTask()
-        }
-        task.setOnPageDownloadData(index, contentLength, receivedSize, bytesRead)
-        SimpleHandler.getInstance().post(task)
+    private fun obtainNotifyTask(task: DownloadTask): NotifyTask {
+        return (mNotifyTaskPool.pop() ?: NotifyTask()).also { it.mTask = task }
     }
 
-    override fun onPageSuccess(index: Int, finished: Int, downloaded: Int, total: Int) {
-        var task = mNotifyTaskPool.pop()
-        if (task == null) {
-            task = NotifyTask()
+    /**
+     * A running download, listens to its own spider so events can be told apart between galleries
+     */
+    private class DownloadTask(val info: DownloadInfo, val spider: SpiderQueen) : OnSpiderListener {
+        // Byte progress is merged here by download workers and read by SpeedReminder on its
+        // tick, instead of posting every network chunk to main thread.
+        // index -> [content length, received size], torn reads are fine for estimation
+        val pageProgress = ConcurrentHashMap<Int, LongArray>()
+        val bytesRead = AtomicLong()
+        var oldSpeed: Long = -1
+
+        override fun onGetPages(pages: Int) {
+            val task = obtainNotifyTask(this)
+            task.setOnGetPagesData(pages)
+            SimpleHandler.getInstance().post(task)
         }
-        task.setOnPageSuccessData(index, finished, downloaded, total)
-        SimpleHandler.getInstance().post(task)
-    }
 
-    override fun onPageFailure(
-        index: Int,
-        error: String?,
-        finished: Int,
-        downloaded: Int,
-        total: Int
-    ) {
-        var task = mNotifyTaskPool.pop()
-        if (task == null) {
-            task = NotifyTask()
-        }
-        task.setOnPageFailureDate(index, error, finished, downloaded, total)
-        SimpleHandler.getInstance().post(task)
-    }
+        override fun onGet509(index: Int) {
+            val task = obtainNotifyTask(this)
+            task.setOnGet509Data(index)
+            SimpleHandler.getInstance().post(task)
+        }
 
-    override fun onFinish(finished: Int, downloaded: Int, total: Int) {
-        var task = mNotifyTaskPool.pop()
-        if (task == null) {
-            task = NotifyTask()
+        override fun onPageDownload(
+            index: Int,
+            contentLength: Long,
+            receivedSize: Long,
+            bytesRead: Int
+        ) {
+            val progress = pageProgress.getOrPut(index) { LongArray(2) }
+            progress[0] = contentLength
+            progress[1] = receivedSize
+            this.bytesRead.addAndGet(bytesRead.toLong())
         }
-        task.setOnFinishDate(finished, downloaded, total)
-        SimpleHandler.getInstance().post(task)
-    }
 
-    override fun onGetImageSuccess(index: Int, image: Image?) {
-        // Ignore
-    }
+        override fun onPageSuccess(index: Int, finished: Int, downloaded: Int, total: Int) {
+            pageProgress.remove(index)
+            val task = obtainNotifyTask(this)
+            task.setOnPageSuccessData(index, finished, downloaded, total)
+            SimpleHandler.getInstance().post(task)
+        }
 
-    override fun onGetImageFailure(index: Int, error: String?) {
-        // Ignore
+        override fun onPageFailure(
+            index: Int,
+            error: String?,
+            finished: Int,
+            downloaded: Int,
+            total: Int
+        ) {
+            pageProgress.remove(index)
+            val task = obtainNotifyTask(this)
+            task.setOnPageFailureDate(index, error, finished, downloaded, total)
+            SimpleHandler.getInstance().post(task)
+        }
+
+        override fun onFinish(finished: Int, downloaded: Int, total: Int) {
+            pageProgress.clear()
+            val task = obtainNotifyTask(this)
+            task.setOnFinishDate(finished, downloaded, total)
+            SimpleHandler.getInstance().post(task)
+        }
+
+        override fun onGetImageSuccess(index: Int, image: Image?) {
+            // Ignore
+        }
+
+        override fun onGetImageFailure(index: Int, error: String?) {
+            // Ignore
+        }
     }
 
     interface DownloadInfoListener {
@@ -888,6 +931,11 @@ object DownloadManager : OnSpiderListener {
          */
         fun onUpdate(info: DownloadInfo, list: List<DownloadInfo>)
 
+        /**
+         * The special infos are changed, but size is the same
+         */
+        fun onUpdateRange(infos: List<DownloadInfo>)
+
         /**
          * Maybe all data is changed, but size is the same
          */
@@ -948,12 +996,10 @@ object DownloadManager : OnSpiderListener {
     }
 
     private class NotifyTask : Runnable {
+        var mTask: DownloadTask? = null
         private var mType = 0
         private var mPages = 0
         private var mIndex = 0
-        private var mContentLength: Long = 0
-        private var mReceivedSize: Long = 0
-        private var mBytesRead = 0
         private var mError: String? = null
         private var mFinished = 0
         private var mDownloaded = 0
@@ -968,19 +1014,6 @@ object DownloadManager : OnSpiderListener {
             mIndex = index
         }
 
-        fun setOnPageDownloadData(
-            index: Int,
-            contentLength: Long,
-            receivedSize: Long,
-            bytesRead: Int
-        ) {
-            mType = TYPE_ON_PAGE_DOWNLOAD
-            mIndex = index
-            mContentLength = contentLength
-            mReceivedSize = receivedSize
-            mBytesRead = bytesRead
-        }
-
         fun setOnPageSuccessData(index: Int, finished: Int, downloaded: Int, total: Int) {
             mType = TYPE_ON_PAGE_SUCCESS
             mIndex = index
@@ -1012,18 +1045,24 @@ object DownloadManager : OnSpiderListener {
         }
 
         override fun run() {
+            val task = mTask
+            mTask = null
+            // Drop events from downloads which are stopped
+            if (task != null && task in mActiveTasks) {
+                handle(task)
+            }
+            mNotifyTaskPool.push(this)
+        }
+
+        private fun handle(task: DownloadTask) {
+            val info = task.info
             when (mType) {
                 TYPE_ON_GET_PAGES -> {
-                    val info = mCurrentTask
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be")
-                    } else {
-                        info.total = mPages
-                        val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
-                        if (list != null) {
-                            for (l in mDownloadInfoListeners) {
-                                l!!.onUpdate(info, list)
-                            }
+                    info.total = mPages
+                    val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
+                    if (list != null) {
+                        for (l in mDownloadInfoListeners) {
+                            l!!.onUpdate(info, list)
                         }
                     }
                 }
@@ -1034,107 +1073,70 @@ object DownloadManager : OnSpiderListener {
                     }
                 }
 
-                TYPE_ON_PAGE_DOWNLOAD -> mSpeedReminder.onDownload(
-                    mIndex,
-                    mContentLength,
-                    mReceivedSize,
-                    mBytesRead
-                )
-
                 TYPE_ON_PAGE_SUCCESS -> {
-                    mSpeedReminder.onDone(mIndex)
-                    val info = mCurrentTask
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be")
-                    } else {
-                        info.finished = mFinished
-                        info.downloaded = mDownloaded
-                        info.total = mTotal
-                        if (mDownloadListener != null) {
-                            mDownloadListener!!.onGetPage(info)
-                        }
-                        val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
-                        if (list != null) {
-                            for (l in mDownloadInfoListeners) {
-                                l!!.onUpdate(info, list)
-                            }
+                    info.finished = mFinished
+                    info.downloaded = mDownloaded
+                    info.total = mTotal
+                    if (mDownloadListener != null) {
+                        mDownloadListener!!.onGetPage(info)
+                    }
+                    val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
+                    if (list != null) {
+                        for (l in mDownloadInfoListeners) {
+                            l!!.onUpdate(info, list)
                         }
                     }
                 }
 
                 TYPE_ON_PAGE_FAILURE -> {
-                    mSpeedReminder.onDone(mIndex)
-                    val info = mCurrentTask
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be")
-                    } else {
-                        info.finished = mFinished
-                        info.downloaded = mDownloaded
-                        info.total = mTotal
-                        val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
-                        if (list != null) {
-                            for (l in mDownloadInfoListeners) {
-                                l!!.onUpdate(info, list)
-                            }
+                    info.finished = mFinished
+                    info.downloaded = mDownloaded
+                    info.total = mTotal
+                    val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
+                    if (list != null) {
+                        for (l in mDownloadInfoListeners) {
+                            l!!.onUpdate(info, list)
                         }
                     }
                 }
 
                 TYPE_ON_FINISH -> {
-                    mSpeedReminder.onFinish()
-                    // Download done
-                    val info = mCurrentTask
-                    mCurrentTask = null
-                    val spider = mCurrentSpider
-                    mCurrentSpider = null
-                    // Release spider
-                    if (spider != null) {
-                        spider.removeOnSpiderListener(DownloadManager)
-                        SpiderQueen.releaseSpiderQueen(spider, SpiderQueen.MODE_DOWNLOAD)
-                    }
-                    // Check null
-                    if (info == null || spider == null) {
-                        Log.e(TAG, "Current stuff is null, but it should not be")
+                    // Download done, release spider
+                    releaseTask(task)
+                    // Update state
+                    info.finished = mFinished
+                    info.downloaded = mDownloaded
+                    info.total = mTotal
+                    info.legacy = mTotal - mFinished
+                    if (info.legacy == 0) {
+                        info.state = DownloadInfo.STATE_FINISH
                     } else {
-                        // Stop speed count
-                        mSpeedReminder.stop()
-                        // Update state
-                        info.finished = mFinished
-                        info.downloaded = mDownloaded
-                        info.total = mTotal
-                        info.legacy = mTotal - mFinished
-                        if (info.legacy == 0) {
-                            info.state = DownloadInfo.STATE_FINISH
-                        } else {
-                            info.state = DownloadInfo.STATE_FAILED
-                        }
-                        // Update in DB
-                        EhDB.putDownloadInfo(info)
-                        // Notify
-                        if (mDownloadListener != null) {
-                            mDownloadListener!!.onFinish(info)
-                        }
-                        val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
-                        if (list != null) {
-                            for (l in mDownloadInfoListeners) {
-                                l!!.onUpdate(info, list)
-                            }
+                        info.state = DownloadInfo.STATE_FAILED
+                    }
+                    // Update in DB
+                    EhDB.putDownloadInfo(info)
+                    DownloadJournal.putState(info.gid, info.state)
+                    if (info.state == DownloadInfo.STATE_FINISH) DownloadPacker.requestPack(info.gid)
+                    // Notify
+                    if (mDownloadListener != null) {
+                        mDownloadListener!!.onFinish(info)
+                    }
+                    val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
+                    if (list != null) {
+                        for (l in mDownloadInfoListeners) {
+                            l!!.onUpdate(info, list)
                         }
-                        // Start next download
-                        ensureDownload()
                     }
+                    // Start next download
+                    ensureDownload()
                 }
             }
-            mNotifyTaskPool.push(this)
         }
     }
 
-    internal class SpeedReminder : Runnable {
-        private val mContentLengthMap = SparseLongArray()
-        private val mReceivedSizeMap = SparseLongArray()
+    private class SpeedReminder : Runnable {
         private var mStop = true
-        private var mBytesRead: Long = 0
-        private var oldSpeed: Long = -1
+
         fun start() {
             if (mStop) {
                 mStop = false
@@ -1145,73 +1147,54 @@ object DownloadManager : OnSpiderListener {
         fun stop() {
             if (!mStop) {
                 mStop = true
-                mBytesRead = 0
-                oldSpeed = -1
-                mContentLengthMap.clear()
-                mReceivedSizeMap.clear()
                 SimpleHandler.getInstance().removeCallbacks(this)
             }
         }
 
-        fun onDownload(index: Int, contentLength: Long, receivedSize: Long, bytesRead: Int) {
-            mContentLengthMap.put(index, contentLength)
-            mReceivedSizeMap.put(index, receivedSize)
-            mBytesRead += bytesRead.toLong()
-        }
-
-        fun onDone(index: Int) {
-            mContentLengthMap.delete(index)
-            mReceivedSizeMap.delete(index)
-        }
-
-        fun onFinish() {
-            mContentLengthMap.clear()
-            mReceivedSizeMap.clear()
-        }
-
-        override fun run() {
-            val info = mCurrentTask
-            if (info != null) {
-                var newSpeed = mBytesRead / 2
-                if (oldSpeed != -1L) {
-                    newSpeed =
-                        MathUtils.lerp(oldSpeed.toFloat(), newSpeed.toFloat(), 0.75f).toLong()
-                }
-                oldSpeed = newSpeed
-                info.speed = newSpeed
-
-                // Calculate remaining
-                if (info.total <= 0) {
-                    info.remaining = -1
-                } else if (newSpeed == 0L) {
-                    info.remaining = 300L * 24L * 60L * 60L * 1000L // 300 days
-                } else {
-                    var downloadingCount = 0
-                    var downloadingContentLengthSum: Long = 0
-                    var totalSize: Long = 0
-                    for (i in 0 until maxOf(mContentLengthMap.size(), mReceivedSizeMap.size())) {
-                        val contentLength = mContentLengthMap.valueAt(i)
-                        val receivedSize = mReceivedSizeMap.valueAt(i)
-                        downloadingCount++
-                        downloadingContentLengthSum += contentLength
-                        totalSize += contentLength - receivedSize
-                    }
-                    if (downloadingCount != 0) {
-                        totalSize += downloadingContentLengthSum * (info.total - info.downloaded - downloadingCount) / downloadingCount
-                        info.remaining = totalSize / newSpeed * 1000
-                    }
+        private fun update(task: DownloadTask) {
+            val info = task.info
+            var newSpeed = task.bytesRead.getAndSet(0) / 2
+            if (task.oldSpeed != -1L) {
+                newSpeed =
+                    MathUtils.lerp(task.oldSpeed.toFloat(), newSpeed.toFloat(), 0.75f).toLong()
+            }
+            task.oldSpeed = newSpeed
+            info.speed = newSpeed
+
+            // Calculate remaining
+            if (info.total <= 0) {
+                info.remaining = -1
+            } else if (newSpeed == 0L) {
+                info.remaining = 300L * 24L * 60L * 60L * 1000L // 300 days
+            } else {
+                var downloadingCount = 0
+                var downloadingContentLengthSum: Long = 0
+                var totalSize: Long = 0
+                for (progress in task.pageProgress.values) {
+                    val contentLength = progress[0]
+                    val receivedSize = progress[1]
+                    downloadingCount++
+                    downloadingContentLengthSum += contentLength
+                    totalSize += contentLength - receivedSize
                 }
-                if (mDownloadListener != null) {
-                    mDownloadListener!!.onDownload(info)
+                if (downloadingCount != 0) {
+                    totalSize += downloadingContentLengthSum * (info.total - info.downloaded - downloadingCount) / downloadingCount
+                    info.remaining = totalSize / newSpeed * 1000
                 }
-                val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
-                if (list != null) {
-                    for (l in mDownloadInfoListeners) {
-                        l!!.onUpdate(info, list)
-                    }
+            }
+            if (mDownloadListener != null) {
+                mDownloadListener!!.onDownload(info)
+            }
+            val list: List<DownloadInfo>? = getInfoListForLabel(info.label)
+            if (list != null) {
+                for (l in mDownloadInfoListeners) {
+                    l!!.onUpdate(info, list)
                 }
             }
-            mBytesRead = 0
+        }
+
+        override fun run() {
+            mActiveTasks.forEach { update(it) }
             if (!mStop) {
                 SimpleHandler.getInstance().postDelayed(this, 2000)
             }
@@ -1221,10 +1204,9 @@ object DownloadManager : OnSpiderListener {
     private val TAG = DownloadManager::class.java.simpleName
     private const val TYPE_ON_GET_PAGES = 0
     private const val TYPE_ON_GET_509 = 1
-    private const val TYPE_ON_PAGE_DOWNLOAD = 2
-    private const val TYPE_ON_PAGE_SUCCESS = 3
-    private const val TYPE_ON_PAGE_FAILURE = 4
-    private const val TYPE_ON_FINISH = 5
+    private const val TYPE_ON_PAGE_SUCCESS = 2
+    private const val TYPE_ON_PAGE_FAILURE = 3
+    private const val TYPE_ON_FINISH = 4
 
     private fun MutableList<DownloadInfo>.sortByDateDescending() {
         sortByDescending { it.time }
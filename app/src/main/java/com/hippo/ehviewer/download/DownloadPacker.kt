@@ -0,0 +1,63 @@
+package com.hippo.ehviewer.download
+
+import android.util.Log
+import com.hippo.ehviewer.Settings
+import com.hippo.ehviewer.spider.SpiderDen
+import com.hippo.ehviewer.spider.SpiderQueen
+import eu.kanade.tachiyomi.util.lang.launchIO
+import java.util.concurrent.ConcurrentHashMap
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Packs finished downloads into one archive each, see [SpiderDen.packDownloadDir].
+ *
+ * A gallery is packed once no [SpiderQueen] serves it, so pages are never deleted under a reader.
+ * A [SpiderQueen] created while its gallery is packed waits for [awaitPacked] before listing pages.
+ * All methods but [awaitPacked] must be called on main thread.
+ */
+object DownloadPacker {
+    private const val TAG = "DownloadPacker"
+
+    // Finished galleries waiting for their spider to be released
+    private val mPending = hashSetOf<Long>()
+    private val mMutex = Mutex()
+
+    // Galleries being packed or waiting for their turn
+    private val mPacking = ConcurrentHashMap<Long, Job>()
+
+    fun requestPack(gid: Long) {
+        if (!Settings.packFinishedDownload) return
+        if (SpiderQueen.isAlive(gid)) {
+            mPending.add(gid)
+        } else {
+            launchPack(gid)
+        }
+    }
+
+    fun onSpiderReleased(gid: Long) {
+        if (mPending.remove(gid)) launchPack(gid)
+    }
+
+    /**
+     * Wait until [gid] isn't being packed, its loose images may be deleted until then
+     */
+    suspend fun awaitPacked(gid: Long) {
+        mPacking[gid]?.join()
+    }
+
+    private fun launchPack(gid: Long) {
+        if (mPacking[gid]?.isActive == true) return
+        val job = launchIO {
+            // One at a time, packing is bound by storage
+            mMutex.withLock {
+                runCatching { SpiderDen.packDownloadDir(gid) }.onFailure {
+                    Log.e(TAG, "Can't pack $gid", it)
+                }
+            }
+        }
+        mPacking[gid] = job
+        job.invokeOnCompletion { mPacking.remove(gid, job) }
+    }
+}
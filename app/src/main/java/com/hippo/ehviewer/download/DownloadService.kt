@@ -87,7 +87,7 @@ class DownloadService : Service(), DownloadManager.DownloadListener {
         m509dBuilder = null
     }
 
-    override fun onStartCommand(intent: Intent, flags: Int, startId: Int): Int {
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         handleIntent(intent)
         return START_STICKY
     }
@@ -142,6 +142,9 @@ class DownloadService : Service(), DownloadManager.DownloadListener {
             }
         } else if (ACTION_CLEAR == action) {
             clear()
+        } else if (intent == null) {
+            // Restarted by system after the process was killed
+            mDownloadManager?.restoreInterruptedDownload()
         }
         checkStopSelf()
     }
@@ -257,6 +260,11 @@ class DownloadService : Service(), DownloadManager.DownloadListener {
             return
         }
         ensureDownloadingBuilder()
+        val downloading = DownloadManager.downloadingInfoList
+        if (downloading.size > 1) {
+            onUpdateAll(downloading)
+            return
+        }
         var speed = info.speed
         if (speed < 0) {
             speed = 0
@@ -280,6 +288,22 @@ class DownloadService : Service(), DownloadManager.DownloadListener {
         mDownloadingDelay!!.startForeground()
     }
 
+    // Show aggregate progress when several galleries are downloading
+    private fun onUpdateAll(downloading: List<DownloadInfo>) {
+        val text = getString(
+            R.string.download_speed_text,
+            FileUtils.humanReadableByteCount(DownloadManager.downloadSpeed, false) + "/s"
+        )
+        val total = downloading.sumOf { it.total.coerceAtLeast(0) }
+        val finished = downloading.sumOf { it.finished.coerceAtLeast(0) }
+        mDownloadingBuilder!!.setContentTitle(getString(R.string.stat_downloading_galleries, downloading.size))
+            .setContentText(text)
+            .setStyle(NotificationCompat.BigTextStyle().bigText(text))
+            .setSubText("$finished/$total")
+            .setProgress(total, finished, false)
+        mDownloadingDelay!!.startForeground()
+    }
+
     override fun onDownload(info: DownloadInfo) {
         onUpdate(info)
     }
@@ -292,7 +316,7 @@ class DownloadService : Service(), DownloadManager.DownloadListener {
         if (mNotifyManager == null) {
             return
         }
-        if (null != mDownloadingDelay) {
+        if (null != mDownloadingDelay && DownloadManager.downloadingInfoList.isEmpty()) {
             mDownloadingDelay!!.cancel()
         }
         ensureDownloadedBuilder()
@@ -396,7 +420,7 @@ class DownloadService : Service(), DownloadManager.DownloadListener {
         if (mNotifyManager == null) {
             return
         }
-        if (null != mDownloadingDelay) {
+        if (null != mDownloadingDelay && DownloadManager.downloadingInfoList.isEmpty()) {
             mDownloadingDelay!!.cancel()
         }
         checkStopSelf()
@@ -23,8 +23,10 @@ import com.hippo.ehviewer.Settings
 import com.hippo.image.Image
 import com.hippo.unifile.UniFile
 import com.hippo.yorozuya.FileUtils
+import eu.kanade.tachiyomi.util.lang.launchIO
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.DelicateCoroutinesApi
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.cancel
@@ -36,6 +38,7 @@ import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.Semaphore
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
 import java.io.IOException
 
 class ArchivePageLoader(context: Context, uri: Uri, passwdFlow: Flow<String>) : PageLoader2(),
@@ -65,13 +68,21 @@ class ArchivePageLoader(context: Context, uri: Uri, passwdFlow: Flow<String>) :
     override var size = 0
         private set
 
+    override val cacheKey = uri.toString()
+
     override fun start() {
         hostJob.start()
     }
 
+    @OptIn(DelicateCoroutinesApi::class)
     override fun stop() {
-        cancel()
-        archiveAccessor.close()
+        val job = coroutineContext[Job]!!
+        job.cancel()
+        // Cancelling doesn't interrupt native calls, close once workers are out of them
+        launchIO {
+            job.join()
+            archiveAccessor.close()
+        }
         super.stop()
     }
 
@@ -79,6 +90,12 @@ class ArchivePageLoader(context: Context, uri: Uri, passwdFlow: Flow<String>) :
     private val mWorkerMutex by lazy { (0 until size).map { Mutex() } }
     private val mSemaphore = Semaphore(4)
 
+    // Read-ahead only extracts, decoding is left to requests
+    private val mReadAheadDispatcher by lazy {
+        Dispatchers.IO.limitedParallelism(if (archiveAccessor.needStreamOrder) 1 else READ_AHEAD_WORKERS)
+    }
+    private var mReadAheadJob: Job? = null
+
     override fun onRequest(index: Int) {
         synchronized(mJobMap) {
             val current = mJobMap[index]
@@ -144,14 +161,14 @@ class ArchivePageLoader(context: Context, uri: Uri, passwdFlow: Flow<String>) :
             e.printStackTrace()
             return false
         }
-        archiveAccessor.extractToFd(index, fd.fd)
+        val ret = archiveAccessor.extractToFd(index, fd.fd)
         try {
             fd.close()
         } catch (e: IOException) {
             e.printStackTrace()
             return false
         }
-        return true
+        return ret
     }
 
     override fun save(index: Int, dir: UniFile, filename: String): UniFile {
@@ -161,5 +178,59 @@ class ArchivePageLoader(context: Context, uri: Uri, passwdFlow: Flow<String>) :
         return dst
     }
 
-    override fun preloadPages(pages: List<Int>, pair: Pair<Int, Int>) {}
-}
\ No newline at end of file
+    /**
+     * Save pages in [range] into [dir] with their own names, in one pass over the archive. Stops
+     * after the page being written once the caller is cancelled.
+     *
+     * @param onProgress called on the extracting thread with pages done and total
+     * @return pages saved
+     */
+    suspend fun save(range: IntRange, dir: UniFile, onProgress: (Int, Int) -> Unit): Int = withContext(Dispatchers.IO) {
+        val job = currentCoroutineContext()[Job]!!
+        val total = range.count()
+        var done = 0
+        val files = hashMapOf<Int, Pair<UniFile, ParcelFileDescriptor>>()
+        archiveAccessor.extractRange(range, object : UriArchiveAccessor.ExtractCallback {
+            override fun openEntry(index: Int): Int {
+                val file = dir.createFile(getImageFilenameWithExtension(index)) ?: return -1
+                val fd = try {
+                    file.openFileDescriptor("w")
+                } catch (e: IOException) {
+                    e.printStackTrace()
+                    return -1
+                }
+                files[index] = file to fd
+                return fd.fd
+            }
+
+            override fun closeEntry(index: Int, success: Boolean): Boolean {
+                files.remove(index)?.let { (file, fd) ->
+                    runCatching { fd.close() }
+                    if (!success) file.delete()
+                }
+                onProgress(++done, total)
+                return job.isActive
+            }
+        })
+    }
+
+    override fun preloadPages(pages: List<Int>, pair: Pair<Int, Int>) {
+        if (!isReady) return
+        archiveAccessor.evictOutside(pair.first..pair.second)
+        mReadAheadJob?.cancel()
+        mReadAheadJob = launch(mReadAheadDispatcher) {
+            // Ascending order keeps a solid archive decompressing forward, others go as planned
+            (if (archiveAccessor.needStreamOrder) pages.sorted() else pages).forEach { index ->
+                launch {
+                    // A request is extracting it anyway
+                    if (synchronized(mJobMap) { mJobMap[index]?.isActive } == true) return@launch
+                    mWorkerMutex[index].withLock {
+                        if (archiveAccessor.prefetch(index)) notifyPageFetched(index)
+                    }
+                }
+            }
+        }
+    }
+}
+
+private const val READ_AHEAD_WORKERS = 2
\ No newline at end of file
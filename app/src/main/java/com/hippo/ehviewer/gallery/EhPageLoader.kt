@@ -27,6 +27,8 @@ import java.util.Locale
 
 class EhPageLoader(private val mGalleryInfo: GalleryInfo) : PageLoader2(), OnSpiderListener {
     private lateinit var mSpiderQueen: SpiderQueen
+    override val cacheKey = "gid:${mGalleryInfo.gid}"
+
     override fun start() {
         mSpiderQueen = obtainSpiderQueen(mGalleryInfo, SpiderQueen.MODE_READ)
         mSpiderQueen.addOnSpiderListener(this)
@@ -122,7 +124,10 @@ class EhPageLoader(private val mGalleryInfo: GalleryInfo) : PageLoader2(), OnSpi
         }
     }
 
-    override fun onPageSuccess(index: Int, finished: Int, downloaded: Int, total: Int) {}
+    override fun onPageSuccess(index: Int, finished: Int, downloaded: Int, total: Int) {
+        notifyPageFetched(index)
+    }
+
     override fun onPageFailure(
         index: Int,
         error: String?,
@@ -0,0 +1,142 @@
+package com.hippo.ehviewer.spider
+
+import com.hippo.ehviewer.Settings
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.withContext
+
+/**
+ * Page fetch permits shared by every [SpiderQueen].
+ *
+ * The total number of pages fetched at once by downloads is bounded by
+ * [Settings.multiThreadDownload], no matter how many galleries are active. Galleries being read
+ * have a budget of the same size of their own, so opening one never queues behind downloads.
+ * Within a budget waiters are queued per gallery and permits are handed out round-robin between
+ * galleries, so a large gallery can't starve the others. Within a gallery the waiter of the
+ * lowest priority goes first. Priorities are read when a permit is handed out, so waiters are
+ * re-ranked whenever what they depend on changes.
+ */
+object FetchScheduler {
+    private val lock = Any()
+
+    private class Waiter(val priority: () -> Int) {
+        val deferred = CompletableDeferred<Unit>()
+    }
+
+    private class Pool {
+        // gid -> waiters of that gallery in arrival order, iteration order is the round-robin order
+        val waiters = LinkedHashMap<Long, ArrayDeque<Waiter>>()
+        var inUse = 0
+    }
+
+    private val mDownloadPool = Pool()
+    private val mReaderPool = Pool()
+
+    // gid -> permits handed out ahead of an earlier waiter
+    private val mPreemptions = hashMapOf<Long, Int>()
+
+    private val limit
+        get() = Settings.multiThreadDownload.coerceAtLeast(1)
+
+    private fun pool(interactive: Boolean) = if (interactive) mReaderPool else mDownloadPool
+
+    val inUse: Int
+        get() = synchronized(lock) { mDownloadPool.inUse + mReaderPool.inUse }
+
+    /**
+     * Permits of [gid] handed out ahead of an earlier waiter
+     */
+    fun getPreemptions(gid: Long): Int = synchronized(lock) { mPreemptions[gid] ?: 0 }
+
+    fun clearPreemptions(gid: Long) {
+        synchronized(lock) { mPreemptions.remove(gid) }
+    }
+
+    /**
+     * @param interactive fetch of a gallery being read, taken from the readers' budget
+     */
+    suspend inline fun <T> withPermit(
+        gid: Long,
+        interactive: Boolean,
+        noinline priority: () -> Int = { 0 },
+        block: () -> T
+    ): T {
+        acquire(gid, interactive, priority)
+        try {
+            return block()
+        } finally {
+            release(interactive)
+        }
+    }
+
+    /**
+     * Give a permit taken for [gid] back while [block] waits on something else, e.g. a host, and
+     * queue for one again after it. A stalled fetch doesn't hold a share of the budget then.
+     */
+    suspend inline fun <T> releaseWhile(
+        gid: Long,
+        interactive: Boolean,
+        noinline priority: () -> Int = { 0 },
+        block: () -> T
+    ): T {
+        release(interactive)
+        try {
+            return block()
+        } finally {
+            // The caller releases a permit when done, take it back even if cancelled
+            withContext(NonCancellable) { acquire(gid, interactive, priority) }
+        }
+    }
+
+    /**
+     * @param priority lower goes first, called with the scheduler locked so it must not block
+     */
+    suspend fun acquire(gid: Long, interactive: Boolean, priority: () -> Int = { 0 }) {
+        val pool = pool(interactive)
+        val waiter = synchronized(lock) {
+            if (pool.inUse < limit && pool.waiters.isEmpty()) {
+                pool.inUse++
+                return
+            }
+            Waiter(priority).also { pool.waiters.getOrPut(gid) { ArrayDeque() }.addLast(it) }
+        }
+        try {
+            waiter.deferred.await()
+        } catch (e: CancellationException) {
+            val granted = synchronized(lock) {
+                val queue = pool.waiters[gid]
+                if (queue != null && queue.remove(waiter)) {
+                    if (queue.isEmpty()) pool.waiters.remove(gid)
+                    false
+                } else {
+                    true
+                }
+            }
+            // The permit was handed to us right before cancellation, give it back
+            if (granted) release(interactive)
+            throw e
+        }
+    }
+
+    fun release(interactive: Boolean) {
+        val pool = pool(interactive)
+        synchronized(lock) {
+            pool.inUse--
+            while (pool.inUse < limit) {
+                val iterator = pool.waiters.entries.iterator()
+                if (!iterator.hasNext()) break
+                val (gid, queue) = iterator.next()
+                iterator.remove()
+                // The first of the lowest priority, ties keep arrival order
+                val waiter = queue.minBy { it.priority() }
+                if (waiter !== queue.first()) mPreemptions[gid] = (mPreemptions[gid] ?: 0) + 1
+                queue.remove(waiter)
+                // Move this gallery to the tail of the round
+                if (queue.isNotEmpty()) pool.waiters[gid] = queue
+                pool.inUse++
+                waiter.deferred.complete(Unit)
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.hippo.ehviewer.spider
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.SystemClock
+import android.util.Log
+import com.hippo.ehviewer.EhApplication.Companion.application
+import com.hippo.ehviewer.Settings
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.delay
+
+/**
+ * Adaptive concurrency limits of image servers, keyed by host.
+ *
+ * The limit of a host grows while all its permits are in use and its latency and throughput
+ * hold up, and shrinks when they degrade. Timeouts, 5xx responses and 509 halve it and back
+ * the host off exponentially. Learned limits are persisted, so a new session starts from them.
+ * H@H hosts come and go, limits of hosts not used for [MAX_AGE_MILLIS] are dropped on load.
+ */
+object HostLimiter {
+    private const val TAG = "HostLimiter"
+    private const val MIN_LIMIT = 1
+    private const val MAX_LIMIT = 8
+    private const val MIN_BACKOFF_MILLIS = 1000L
+    private const val MAX_BACKOFF_MILLIS = 60000L
+
+    // Weight of a new sample in the moving averages
+    private const val EWMA_WEIGHT = 0.2
+
+    private const val MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000
+    private const val MAX_HOSTS = 64
+
+    private val sPrefs by lazy {
+        application.getSharedPreferences("host_limits", Context.MODE_PRIVATE).also { prune(it) }
+    }
+    private val mHosts = hashMapOf<String, Host>()
+
+    private class Host(val name: String, var limit: Int) {
+        var inUse = 0
+        val waiters = ArrayDeque<CompletableDeferred<Unit>>()
+
+        // Moving average of bytes per millisecond and time to response in milliseconds
+        var throughput = 0.0
+        var latency = 0.0
+        var streak = 0
+        var backoff = 0L
+        var backoffUntil = 0L
+    }
+
+    private fun obtain(host: String): Host {
+        return synchronized(mHosts) {
+            mHosts.getOrPut(host) {
+                val stored = sPrefs.getLong(host, 0)
+                val limit = if (stored != 0L) {
+                    // Used again, keep it
+                    unpackLimit(stored).also { sPrefs.edit().putLong(host, pack(it)).apply() }
+                } else {
+                    Settings.multiThreadDownload
+                }
+                Host(host, limit.coerceIn(MIN_LIMIT, MAX_LIMIT))
+            }
+        }
+    }
+
+    // Limit in the low byte, wall clock millis it was last used above
+    private fun pack(limit: Int) = System.currentTimeMillis() shl 8 or limit.toLong()
+    private fun unpackLimit(value: Long) = (value and 0xff).toInt()
+    private fun unpackTime(value: Long) = value shr 8
+
+    // Drop limits not used for MAX_AGE_MILLIS, and all but the MAX_HOSTS most recent ones
+    private fun prune(prefs: SharedPreferences) {
+        val now = System.currentTimeMillis()
+        val all = prefs.all
+        val kept = all.mapNotNull { (host, value) -> (value as? Long)?.let { host to unpackTime(it) } }
+            .filter { now - it.second < MAX_AGE_MILLIS }
+            .sortedByDescending { it.second }
+            .take(MAX_HOSTS)
+            .mapTo(hashSetOf()) { it.first }
+        val stale = all.keys - kept
+        if (stale.isEmpty()) return
+        Log.d(TAG, "Drop limits of ${stale.size} hosts")
+        prefs.edit().apply { stale.forEach { remove(it) } }.apply()
+    }
+
+    /**
+     * @param wait wraps waiting for a permit when the host is backed off or saturated
+     */
+    suspend inline fun <T> withPermit(
+        host: String,
+        noinline wait: suspend (suspend () -> Unit) -> Unit = { it() },
+        block: () -> T
+    ): T {
+        if (!tryAcquire(host)) wait { acquire(host) }
+        try {
+            return block()
+        } finally {
+            release(host)
+        }
+    }
+
+    /**
+     * Take a permit of [host] if it's free now, false if the host is backed off or saturated
+     */
+    fun tryAcquire(host: String): Boolean {
+        val h = obtain(host)
+        synchronized(h) {
+            if (h.backoffUntil > SystemClock.elapsedRealtime() || h.inUse >= h.limit || h.waiters.isNotEmpty()) {
+                return false
+            }
+            h.inUse++
+            return true
+        }
+    }
+
+    suspend fun acquire(host: String) {
+        val h = obtain(host)
+        val wait = synchronized(h) { h.backoffUntil - SystemClock.elapsedRealtime() }
+        if (wait > 0) delay(wait)
+        val waiter = synchronized(h) {
+            if (h.inUse < h.limit && h.waiters.isEmpty()) {
+                h.inUse++
+                return
+            }
+            CompletableDeferred<Unit>().also { h.waiters.addLast(it) }
+        }
+        try {
+            waiter.await()
+        } catch (e: CancellationException) {
+            val granted = synchronized(h) { !h.waiters.remove(waiter) }
+            // The permit was handed to us right before cancellation, give it back
+            if (granted) release(host)
+            throw e
+        }
+    }
+
+    fun release(host: String) {
+        val h = obtain(host)
+        synchronized(h) {
+            h.inUse--
+            dispatch(h)
+        }
+    }
+
+    // Must hold the monitor of h
+    private fun dispatch(h: Host) {
+        while (h.inUse < h.limit && h.waiters.isNotEmpty()) {
+            h.inUse++
+            h.waiters.removeFirst().complete(Unit)
+        }
+    }
+
+    // Must hold the monitor of h
+    private fun setLimit(h: Host, limit: Int) {
+        val newLimit = limit.coerceIn(MIN_LIMIT, MAX_LIMIT)
+        if (newLimit == h.limit) return
+        Log.d(TAG, "Limit of ${h.name}: ${h.limit} -> $newLimit")
+        h.limit = newLimit
+        h.streak = 0
+        sPrefs.edit().putLong(h.name, pack(newLimit)).apply()
+        dispatch(h)
+    }
+
+    /**
+     * @param bytes bytes received
+     * @param latency milliseconds until the response arrived
+     * @param elapsed milliseconds until the body is read
+     */
+    fun onSuccess(host: String, bytes: Long, latency: Long, elapsed: Long) {
+        val h = obtain(host)
+        synchronized(h) {
+            h.backoff = 0
+            if (bytes <= 0 || elapsed <= 0) return
+            val throughput = bytes.toDouble() / elapsed
+            if (h.throughput == 0.0) {
+                h.throughput = throughput
+                h.latency = latency.toDouble()
+                return
+            }
+            if (throughput < h.throughput / 2 || latency > h.latency * 2) {
+                // Host slows down under this load
+                setLimit(h, h.limit - 1)
+            } else if (h.inUse >= h.limit && ++h.streak >= h.limit) {
+                // Host keeps up with all permits in use, try one more
+                setLimit(h, h.limit + 1)
+            }
+            h.throughput += (throughput - h.throughput) * EWMA_WEIGHT
+            h.latency += (latency - h.latency) * EWMA_WEIGHT
+        }
+    }
+
+    /**
+     * Host timed out or failed with 5xx
+     */
+    fun onFailure(host: String) {
+        val h = obtain(host)
+        synchronized(h) { backoff(h) }
+    }
+
+    /**
+     * We got 509, back off every host
+     */
+    fun on509() {
+        val hosts = synchronized(mHosts) { mHosts.values.toList() }
+        hosts.forEach { synchronized(it) { backoff(it) } }
+    }
+
+    // Must hold the monitor of h
+    private fun backoff(h: Host) {
+        setLimit(h, h.limit / 2)
+        h.backoff = (h.backoff * 2).coerceIn(MIN_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS)
+        h.backoffUntil = SystemClock.elapsedRealtime() + h.backoff
+    }
+}
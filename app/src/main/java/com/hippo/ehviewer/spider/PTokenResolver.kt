@@ -0,0 +1,177 @@
+package com.hippo.ehviewer.spider
+
+import android.util.Log
+import com.hippo.ehviewer.EhApplication.Companion.okHttpClient
+import com.hippo.ehviewer.client.EhRequestBuilder
+import com.hippo.ehviewer.client.EhUrl.getGalleryDetailUrl
+import com.hippo.ehviewer.client.EhUrl.getGalleryMultiPageViewerUrl
+import com.hippo.ehviewer.client.EhUrl.referer
+import com.hippo.ehviewer.client.data.GalleryInfo
+import com.hippo.ehviewer.client.parser.GalleryMultiPageViewerPTokenParser
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import moe.tarsin.coroutines.runSuspendCatching
+import okhttp3.executeAsync
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Resolve pToken of pages for a [SpiderQueen].
+ *
+ * Every detail preview page is loaded at most once, concurrent requests waiting on the same
+ * preview page share one fetch, and the preview pages after the requested one are prefetched.
+ */
+class PTokenResolver(
+    private val galleryInfo: GalleryInfo,
+    private val spiderInfo: SpiderInfo,
+    private val scope: CoroutineScope
+) {
+    // preview page index -> fetch job, a job is dropped if it failed
+    private val mPreviewJobs = hashMapOf<Int, Deferred<Boolean>>()
+    private var mMultiPageViewerJob: Deferred<Boolean>? = null
+    private val mFetchCount = AtomicInteger()
+    private val mCoalescedCount = AtomicInteger()
+
+    /**
+     * Network requests made for pToken
+     */
+    val fetchCount: Int
+        get() = mFetchCount.get()
+
+    /**
+     * Requests served by a fetch which was already running or done
+     */
+    val coalescedCount: Int
+        get() = mCoalescedCount.get()
+
+    private fun getCached(index: Int): String? {
+        return synchronized(spiderInfo.pTokenMap) {
+            spiderInfo.pTokenMap[index]
+        }?.takeIf { it != TOKEN_FAILED }
+    }
+
+    fun markFailed(index: Int) {
+        synchronized(spiderInfo.pTokenMap) {
+            spiderInfo.pTokenMap[index] = TOKEN_FAILED
+        }
+    }
+
+    /**
+     * Forget a failed pToken and allow its preview page to be fetched again
+     */
+    fun invalidate(index: Int) {
+        synchronized(spiderInfo.pTokenMap) {
+            if (spiderInfo.pTokenMap[index] == TOKEN_FAILED) spiderInfo.pTokenMap.remove(index)
+        }
+        synchronized(mPreviewJobs) {
+            mPreviewJobs.remove(previewIndexOf(index))
+            mMultiPageViewerJob = null
+        }
+    }
+
+    suspend fun resolve(index: Int): String? {
+        if (index !in 0 until spiderInfo.pages) return null
+        getCached(index)?.let {
+            prefetch(previewIndexOf(index))
+            return it
+        }
+        // previewPerPage is unknown until the first preview page is read, so try again with the
+        // new estimate
+        repeat(2) {
+            val previewIndex = previewIndexOf(index)
+            prefetch(previewIndex)
+            obtainPreviewJob(previewIndex).await()
+            getCached(index)?.let { return it }
+        }
+        obtainMultiPageViewerJob().await()
+        return getCached(index)
+    }
+
+    private fun previewIndexOf(index: Int): Int {
+        var previewIndex = if (spiderInfo.previewPerPage > 0) {
+            index / spiderInfo.previewPerPage
+        } else {
+            0
+        }
+        if (spiderInfo.previewPages > 0) {
+            previewIndex = previewIndex.coerceAtMost(spiderInfo.previewPages - 1)
+        }
+        return previewIndex
+    }
+
+    private fun prefetch(previewIndex: Int) {
+        val perPage = spiderInfo.previewPerPage
+        if (perPage <= 0) return
+        for (i in previewIndex + 1..previewIndex + PREFETCH_PREVIEW_PAGES) {
+            if (spiderInfo.previewPages in 1..i) break
+            val first = i * perPage
+            if (first >= spiderInfo.pages) break
+            if (getCached(first) == null) {
+                synchronized(mPreviewJobs) {
+                    if (i !in mPreviewJobs) mPreviewJobs[i] = launchPreviewJob(i)
+                }
+            }
+        }
+    }
+
+    private fun obtainPreviewJob(previewIndex: Int): Deferred<Boolean> {
+        synchronized(mPreviewJobs) {
+            mPreviewJobs[previewIndex]?.let {
+                mCoalescedCount.incrementAndGet()
+                return it
+            }
+            return launchPreviewJob(previewIndex).also { mPreviewJobs[previewIndex] = it }
+        }
+    }
+
+    private fun launchPreviewJob(previewIndex: Int) = scope.async {
+        val url = getGalleryDetailUrl(galleryInfo.gid, galleryInfo.token, previewIndex, false)
+        val request = EhRequestBuilder(url, referer).build()
+        logFetch("preview page $previewIndex")
+        runSuspendCatching {
+            okHttpClient.newCall(request).executeAsync().use { response ->
+                spiderInfo.readPreviews(response.body.string(), previewIndex)
+            }
+        }.onFailure {
+            it.printStackTrace()
+            synchronized(mPreviewJobs) { mPreviewJobs.remove(previewIndex) }
+        }.isSuccess
+    }
+
+    private fun obtainMultiPageViewerJob(): Deferred<Boolean> {
+        synchronized(mPreviewJobs) {
+            mMultiPageViewerJob?.let {
+                mCoalescedCount.incrementAndGet()
+                return it
+            }
+            return launchMultiPageViewerJob().also { mMultiPageViewerJob = it }
+        }
+    }
+
+    private fun launchMultiPageViewerJob() = scope.async {
+        val url = getGalleryMultiPageViewerUrl(galleryInfo.gid, galleryInfo.token!!)
+        val request = EhRequestBuilder(url, referer).build()
+        logFetch("multi page viewer")
+        runSuspendCatching {
+            okHttpClient.newCall(request).executeAsync().use { response ->
+                val list = GalleryMultiPageViewerPTokenParser.parse(response.body.string())
+                synchronized(spiderInfo.pTokenMap) {
+                    list.forEachIndexed { i, pToken -> spiderInfo.pTokenMap[i] = pToken }
+                }
+            }
+        }.onFailure {
+            it.printStackTrace()
+            synchronized(mPreviewJobs) { mMultiPageViewerJob = null }
+        }.isSuccess
+    }
+
+    private fun logFetch(what: String) {
+        val count = mFetchCount.incrementAndGet()
+        Log.d(TAG, "Fetch $what of ${galleryInfo.gid}, fetched $count, coalesced ${mCoalescedCount.get()}")
+    }
+
+    companion object {
+        private const val TAG = "PTokenResolver"
+        private const val PREFETCH_PREVIEW_PAGES = 2
+    }
+}
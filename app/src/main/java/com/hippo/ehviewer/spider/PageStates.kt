@@ -0,0 +1,66 @@
+package com.hippo.ehviewer.spider
+
+import com.hippo.ehviewer.spider.SpiderQueen.Companion.STATE_FAILED
+import com.hippo.ehviewer.spider.SpiderQueen.Companion.STATE_FINISHED
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * States of the pages of a gallery, with counts of pages downloaded (finished or failed) and
+ * finished, changed without a lock.
+ *
+ * A state changes by CAS. Counters are decreased before a page leaves a counted state and
+ * increased after it enters one, so they may lag behind the states but never count more pages
+ * than there are. A counter equal to [size] is always true.
+ */
+class PageStates(size: Int) {
+    private val mStates = AtomicIntegerArray(size)
+    private val mDownloaded = AtomicInteger()
+    private val mFinished = AtomicInteger()
+
+    val size: Int
+        get() = mStates.length()
+
+    val downloaded: Int
+        get() = mDownloaded.get()
+
+    val finished: Int
+        get() = mFinished.get()
+
+    operator fun get(index: Int) = mStates[index]
+
+    /**
+     * Set page [index] to what [update] returns for its state, [update] may be called again if
+     * the state changes meanwhile
+     *
+     * @return the state replaced
+     */
+    inline fun update(index: Int, update: (Int) -> Int): Int {
+        while (true) {
+            val old = this[index]
+            val state = update(old)
+            if (old == state || tryTransit(index, old, state)) return old
+        }
+    }
+
+    fun set(index: Int, state: Int) = update(index) { state }
+
+    @PublishedApi
+    internal fun tryTransit(index: Int, old: Int, state: Int): Boolean {
+        val leftDownloaded = isDownloaded(old) && !isDownloaded(state)
+        val leftFinished = old == STATE_FINISHED && state != STATE_FINISHED
+        if (leftDownloaded) mDownloaded.decrementAndGet()
+        if (leftFinished) mFinished.decrementAndGet()
+        if (mStates.compareAndSet(index, old, state)) {
+            if (!isDownloaded(old) && isDownloaded(state)) mDownloaded.incrementAndGet()
+            if (old != STATE_FINISHED && state == STATE_FINISHED) mFinished.incrementAndGet()
+            return true
+        }
+        // Changed by another thread, which counts it
+        if (leftDownloaded) mDownloaded.incrementAndGet()
+        if (leftFinished) mFinished.incrementAndGet()
+        return false
+    }
+
+    private fun isDownloaded(state: Int) = state == STATE_FINISHED || state == STATE_FAILED
+}
@@ -17,8 +17,14 @@ package com.hippo.ehviewer.spider
 
 import android.graphics.ImageDecoder
 import android.os.ParcelFileDescriptor
-import android.os.ParcelFileDescriptor.MODE_READ_WRITE
+import android.os.ParcelFileDescriptor.MODE_READ_ONLY
+import android.os.SystemClock
+import android.system.Os
+import android.util.Log
 import coil.disk.DiskCache
+import com.davemorrissey.labs.subscaleview.provider.InputProvider
+import com.hippo.ArchivePacker
+import com.hippo.UriArchiveAccessor
 import com.hippo.ehviewer.EhApplication
 import com.hippo.ehviewer.EhApplication.Companion.application
 import com.hippo.ehviewer.EhDB
@@ -34,21 +40,32 @@ import com.hippo.image.Image
 import com.hippo.image.Image.CloseableSource
 import com.hippo.sendTo
 import com.hippo.unifile.UniFile
-import com.hippo.unifile.openOutputStream
 import com.hippo.yorozuya.FileUtils
 import com.hippo.yorozuya.MathUtils
 import io.ktor.client.plugins.onDownload
+import io.ktor.client.request.header
 import io.ktor.client.request.prepareGet
 import io.ktor.client.statement.HttpResponse
 import io.ktor.client.statement.bodyAsChannel
 import io.ktor.http.ContentType
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.Url
 import io.ktor.http.contentLength
 import io.ktor.http.contentType
+import io.ktor.utils.io.ByteReadChannel
 import io.ktor.utils.io.jvm.nio.copyTo
-import moe.tarsin.coroutines.runSuspendCatching
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.cbor.Cbor
+import kotlinx.serialization.decodeFromByteArray
+import kotlinx.serialization.encodeToByteArray
 import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
 import java.io.IOException
 import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.io.path.readText
 
 private val client = EhApplication.ktorClient
@@ -60,6 +77,14 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
     @Volatile
     private var mMode = SpiderQueen.MODE_READ
 
+    // Image files in download dir by page index, built on first use
+    @Volatile
+    private var mDirIndex: DownloadDirIndex? = null
+
+    // Pages packed into an archive in download dir, opened on first use
+    @Volatile
+    private var mPacked: PackedPages? = null
+
     fun setMode(@SpiderQueen.Mode mode: Int) {
         mMode = mode
         if (mode == SpiderQueen.MODE_DOWNLOAD) {
@@ -73,6 +98,7 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
         val dirname = FileUtils.sanitizeFilename("$mGid-$title")
         EhDB.putDownloadDirname(mGid, dirname)
         mDownloadDir = getGalleryDownloadDir(mGid)
+        mDirIndex = null
         return mDownloadDir?.ensureDir() ?: false
     }
 
@@ -95,11 +121,47 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
         return sCache[key]?.apply { close() } != null
     }
 
+    private fun obtainDirIndex(): DownloadDirIndex? {
+        mDirIndex?.let { return it }
+        val dir = downloadDir ?: return null
+        return synchronized(this) {
+            mDirIndex ?: DownloadDirIndex(dir).also { mDirIndex = it }
+        }
+    }
+
+    private fun obtainPacked(): PackedPages? {
+        mPacked?.let { return it }
+        val file = obtainDirIndex()?.packedFile ?: return null
+        return synchronized(this) {
+            mPacked ?: PackedPages(file).also { mPacked = it }
+        }
+    }
+
+    /**
+     * Release the packed archive, once sources handed out are closed
+     */
+    fun close() {
+        synchronized(this) { mPacked }?.close()
+    }
+
+    private fun findImageFile(index: Int): UniFile? {
+        return obtainDirIndex()?.get(index)?.file
+    }
+
+    private fun createImageFile(dir: UniFile, index: Int, extension: String): UniFile? {
+        val filename = generateImageFilename(index, extension)
+        return dir.createFile(filename)?.also { obtainDirIndex()?.put(index, it, filename) }
+    }
+
     private fun containInDownloadDir(index: Int): Boolean {
-        val dir = downloadDir ?: return false
-        return findImageFile(dir, index) != null
+        return findImageFile(index) != null || obtainPacked()?.contains(index) == true
     }
 
+    /**
+     * Whether the image of [index] is in the current download dir, loose or packed
+     */
+    fun isInDownloadDir(index: Int) = containInDownloadDir(index)
+
     /**
      * @param extension with dot
      */
@@ -108,19 +170,57 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
             ?: SUPPORT_IMAGE_EXTENSIONS[0]
     }
 
+    /**
+     * Put [src] into download dir as the image of [index]. When download dir is a raw file on
+     * the same filesystem, [src] is hard linked, otherwise it is copied.
+     *
+     * @param extension with dot
+     * @return [MOVED], [COPIED] or null if failed
+     */
+    private fun promoteToDownloadDir(src: File, index: Int, extension: String): Int? {
+        val dir = downloadDir ?: return null
+        val filename = generateImageFilename(index, extension)
+        val length = src.length()
+        dir.uri.takeIf { UniFile.isFileUri(it) }?.path?.let { dirPath ->
+            val target = File(dirPath, filename)
+            runCatching {
+                // link() doesn't replace an existing file
+                target.delete()
+                Os.link(src.path, target.path)
+            }.onSuccess {
+                obtainDirIndex()?.put(index, UniFile.fromFile(target)!!, filename)
+                onPromoted(index, length, true)
+                return MOVED
+            }
+            // EXDEV or the filesystem doesn't support links, copy instead
+        }
+        val file = createImageFile(dir, index, extension) ?: return null
+        val copied = file.openFileDescriptor("w").use { outFd ->
+            ParcelFileDescriptor.open(src, MODE_READ_ONLY).use {
+                it sendTo outFd
+            }
+        }
+        onPromoted(index, copied, false)
+        return COPIED
+    }
+
+    private fun onPromoted(index: Int, bytes: Long, moved: Boolean) {
+        val total = if (moved) sBytesMoved.addAndGet(bytes) else sBytesCopied.addAndGet(bytes)
+        Log.d(TAG, "${if (moved) "Moved" else "Copied"} $bytes bytes of $mGid-$index, $total in total")
+    }
+
     private fun copyFromCacheToDownloadDir(index: Int): Boolean {
-        val dir = downloadDir ?: return false
         val key = EhCacheKeyFactory.getImageKey(mGid, index)
+        var result: Int? = null
         return runCatching {
             sCache.read(key) {
                 val extension = fixExtension("." + metadata.toFile().readText())
-                val file = dir.createFile(generateImageFilename(index, extension)) ?: return false
-                file.openFileDescriptor("w").use { outFd ->
-                    ParcelFileDescriptor.open(data.toFile(), MODE_READ_WRITE).use {
-                        it sendTo outFd
-                    }
-                }
+                result = promoteToDownloadDir(data.toFile(), index, extension)
             }
+            // The download dir holds a link to the cached file now, drop the cache entry so
+            // the cache never writes through to a downloaded image
+            if (result == MOVED) sCache.remove(key)
+            result != null
         }.getOrElse {
             it.printStackTrace()
             false
@@ -149,78 +249,125 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
     }
 
     private fun removeFromDownloadDir(index: Int): Boolean {
-        return downloadDir?.let { findImageFile(it, index)?.delete() } ?: false
+        return obtainDirIndex()?.remove(index)?.file?.delete() ?: false
     }
 
     fun remove(index: Int): Boolean {
         return removeFromCache(index) or removeFromDownloadDir(index)
     }
 
-    private fun findDownloadFileForIndex(index: Int, extension: String): UniFile? {
-        val dir = downloadDir ?: return null
-        val ext = fixExtension(".$extension")
-        return dir.createFile(generateImageFilename(index, ext))
-    }
-
+    /**
+     * @param waitHost wraps waiting for a permit of the image host, see [HostLimiter.withPermit]
+     */
     @Throws(IOException::class)
     suspend fun makeHttpCallAndSaveImage(
         index: Int,
         url: String,
         referer: String?,
+        waitHost: suspend (suspend () -> Unit) -> Unit,
         notifyProgress: (Long, Long, Int) -> Unit
     ): Boolean {
-        return client.prepareGet(url) {
-            var state: Long = 0
-            referer(referer)
-            onDownload { bytesSentTotal, contentLength ->
-                notifyProgress(contentLength, bytesSentTotal, (bytesSentTotal - state).toInt())
-                state = bytesSentTotal
-            }
-        }.execute {
-            if (it.status.value >= 400) return@execute false
-            saveFromHttpResponse(index, it)
+        // Pages going to download dir are resumed from there, the cache dir is rarely on the same
+        // filesystem and moving them over would write every page twice
+        val dir = downloadDir
+        val partial = if (dir != null) {
+            PartialImage(dir, generateImageFilename(index, PARTIAL_EXTENSION))
+        } else {
+            PartialImage(UniFile.fromFile(sPartialDir)!!, "$mGid-$index")
+        }
+        val offset = partial.offset
+        var base: Long = 0
+        val host = Url(url).host
+        return HostLimiter.withPermit(host, waitHost) {
+            val start = SystemClock.elapsedRealtime()
+            var latency: Long = 0
+            var received: Long = 0
+            runCatching {
+                client.prepareGet(url) {
+                    referer(referer)
+                    // Resume from the bytes we got last time
+                    if (offset > 0) header(HttpHeaders.Range, "bytes=$offset-")
+                    onDownload { bytesSentTotal, contentLength ->
+                        notifyProgress(base + contentLength, base + bytesSentTotal, (bytesSentTotal - received).toInt())
+                        received = bytesSentTotal
+                    }
+                }.execute {
+                    latency = SystemClock.elapsedRealtime() - start
+                    if (it.status.value >= 500) HostLimiter.onFailure(host)
+                    if (it.status == HttpStatusCode.RequestedRangeNotSatisfiable) partial.delete()
+                    if (it.status.value >= 400) return@execute false
+                    if (it.status == HttpStatusCode.PartialContent) {
+                        // Server may resume a different file, only trust it if total length matches
+                        if (offset <= 0 || it.contentRangeTotal() != partial.total) {
+                            partial.delete()
+                            return@execute false
+                        }
+                        base = offset
+                    } else {
+                        partial.delete()
+                    }
+                    saveFromHttpResponse(index, it, partial, dir).also { success ->
+                        if (success) {
+                            HostLimiter.onSuccess(host, received, latency, SystemClock.elapsedRealtime() - start)
+                        }
+                    }
+                }
+            }.onFailure {
+                // Timeout or broken connection
+                if (it is IOException) HostLimiter.onFailure(host)
+            }.getOrThrow()
         }
     }
 
-    private suspend fun saveFromHttpResponse(index: Int, body: HttpResponse): Boolean {
+    /**
+     * @param dir download dir [partial] is in, null if it's in cache dir
+     */
+    private suspend fun saveFromHttpResponse(index: Int, body: HttpResponse, partial: PartialImage, dir: UniFile?): Boolean {
         val contentType = body.contentType()
-        val extension = contentType?.contentSubtype ?: "jpg"
         val length = body.contentLength() ?: return false
+        val extension = partial.extension ?: contentType?.contentSubtype ?: "jpg"
+        val total = partial.offset + length
+        partial.begin(total, extension)
+        if (partial.append(body.bodyAsChannel()) != total) {
+            // Incomplete, keep what we got for next time
+            return false
+        }
 
-        suspend fun doSave(outFile: UniFile): Long {
-            val ret: Long
-            outFile.openOutputStream().use { outputStream ->
-                outputStream.channel.use {
-                    ret = body.bodyAsChannel().copyTo(it)
-                }
+        if (extension == ContentType.Image.GIF.contentSubtype) {
+            partial.openFileDescriptor("rw").use {
+                Image.rewriteGifSource2(it.fd)
             }
-            if (contentType == ContentType.Image.GIF)
-                outFile.openFileDescriptor("rw").use {
-                    Image.rewriteGifSource2(it.fd)
-                }
-            return ret
         }
 
-        findDownloadFileForIndex(index, extension)?.runSuspendCatching {
-            return doSave(this) == length
-        }?.onFailure {
-            it.printStackTrace()
-            return false
+        if (dir != null) {
+            val filename = generateImageFilename(index, fixExtension(".$extension"))
+            runCatching {
+                // Renamed in place, drop what it replaces
+                removeFromDownloadDir(index)
+                partial.renameTo(filename)
+            }.onFailure {
+                it.printStackTrace()
+                return false
+            }.onSuccess { file ->
+                file ?: return false
+                obtainDirIndex()?.put(index, file, filename)
+                return true
+            }
         }
 
         // Read Mode, allow save to cache
         if (mMode == SpiderQueen.MODE_READ) {
             val key = EhCacheKeyFactory.getImageKey(mGid, index)
-            var received: Long = 0
-            runSuspendCatching {
+            runCatching {
                 sCache.edit(key) {
                     metadata.toFile().writeText(extension)
-                    received = doSave(UniFile.fromFile(data.toFile())!!)
+                    partial.moveTo(data.toFile())
                 }
             }.onFailure {
                 it.printStackTrace()
             }.onSuccess {
-                return received == length
+                partial.delete()
+                return it
             }
         }
 
@@ -243,20 +390,22 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
                     it.printStackTrace()
                     return false
                 }
+            }
 
-                downloadDir?.let { uniFile ->
-                    runCatching {
-                        findImageFile(uniFile, index)?.openFileDescriptor("r")?.use {
-                            it sendTo toFd
-                        }
-                    }.onFailure {
-                        it.printStackTrace()
-                        return false
-                    }.onSuccess {
-                        return true
+            findImageFile(index)?.let { uniFile ->
+                runCatching {
+                    uniFile.openFileDescriptor("r").use {
+                        it sendTo toFd
                     }
+                }.onFailure {
+                    it.printStackTrace()
+                    return false
+                }.onSuccess {
+                    return true
                 }
             }
+
+            obtainPacked()?.let { return it.extractToFd(index, toFd.fd) }
         }
         return false
     }
@@ -268,8 +417,8 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
     fun getExtension(index: Int): String? {
         val key = EhCacheKeyFactory.getImageKey(mGid, index)
         return sCache[key]?.use { it.metadata.toNioPath().readText() }
-            ?: downloadDir?.let { findImageFile(it, index) }
-                ?.name.let { FileUtils.getExtensionFromFilename(it) }
+            ?: (obtainDirIndex()?.get(index)?.name ?: obtainPacked()?.getName(index))
+                .let { FileUtils.getExtensionFromFilename(it) }
     }
 
     fun getImageSource(index: Int): CloseableSource? {
@@ -277,29 +426,44 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
             val key = EhCacheKeyFactory.getImageKey(mGid, index)
             val snapshot: DiskCache.Snapshot? = sCache[key]
             if (snapshot != null) {
-                val source = ImageDecoder.createSource(snapshot.data.toFile())
+                val file = snapshot.data.toFile()
+                val source = ImageDecoder.createSource(file)
                 return object : CloseableSource {
                     override val source: ImageDecoder.Source
                         get() = source
 
+                    override val provider = InputProvider { file.inputStream() }
+
                     override fun close() {
                         snapshot.close()
                     }
                 }
             }
         }
-        val dir = downloadDir ?: return null
-        var file = findImageFile(dir, index)
+        var file = findImageFile(index)
         if (file != null && mMode == SpiderQueen.MODE_DOWNLOAD) {
             if (copyFromCacheToDownloadDir(index)) {
-                file = findImageFile(dir, index)
+                file = findImageFile(index)
             }
         }
-        return file?.imageSource
+        return file?.imageSource ?: obtainPacked()?.getImageSource(index)
     }
 
     companion object {
+        private const val TAG = "SpiderDen"
         private const val TRANSFER_BLOCK: Long = 8192
+        private const val MOVED = 0
+        private const val COPIED = 1
+        private const val PARTIAL_EXTENSION = ".part"
+
+        /**
+         * Images of a finished download packed by [packDownloadDir]
+         */
+        const val PACKED_FILENAME = "gallery.cbz"
+
+        // Bytes put into download dirs by renaming or linking a cached file, and by copying it
+        private val sBytesMoved = AtomicLong()
+        private val sBytesCopied = AtomicLong()
 
         // We use data to store image file, and metadata for image type
         private val sCache by lazy {
@@ -309,8 +473,6 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
                 ).build()
         }
 
-        private val COMPAT_IMAGE_EXTENSIONS = SUPPORT_IMAGE_EXTENSIONS + ".jpeg"
-
         fun getGalleryDownloadDir(gid: Long): UniFile? {
             val dir = Settings.downloadLocation
             // Read from DB
@@ -325,22 +487,281 @@ class SpiderDen(private val mGalleryInfo: GalleryInfo) {
             }
         }
 
+        /**
+         * Pack images in download dir of [gid] into a store-only [PACKED_FILENAME], streaming
+         * them one by one, and delete them once the archive is complete. A dir packed already
+         * is left as it is.
+         *
+         * @return images packed
+         */
+        @Throws(IOException::class)
+        fun packDownloadDir(gid: Long): Int {
+            val dir = getGalleryDownloadDir(gid)?.takeIf { it.isDirectory } ?: return 0
+            val index = DownloadDirIndex(dir)
+            if (index.packedFile != null) return 0
+            val entries = index.entries.toSortedMap().values
+            if (entries.isEmpty()) return 0
+            val tmpName = "$PACKED_FILENAME.tmp"
+            val tmp = dir.createFile(tmpName) ?: throw IOException("Can't create $tmpName")
+            runCatching {
+                tmp.openFileDescriptor("w").use { out ->
+                    ArchivePacker(out.fd).use { packer ->
+                        entries.forEach { entry ->
+                            entry.file.openFileDescriptor("r").use {
+                                packer.add(entry.name, it, entry.file.lastModified())
+                            }
+                        }
+                        packer.finish()
+                    }
+                }
+                if (!tmp.renameTo(PACKED_FILENAME)) throw IOException("Can't rename $tmpName")
+            }.onFailure {
+                tmp.delete()
+                throw it
+            }
+            entries.forEach { it.file.delete() }
+            Log.d(TAG, "Packed ${entries.size} images of $gid")
+            return entries.size
+        }
+
         /**
          * @param extension with dot
          */
         fun generateImageFilename(index: Int, extension: String?): String {
             return String.format(Locale.US, "%08d%s", index + 1, extension)
         }
+    }
+}
+
+private val COMPAT_IMAGE_EXTENSIONS = SUPPORT_IMAGE_EXTENSIONS + ".jpeg"
+
+// Length of "%08d" in generateImageFilename
+private const val FILENAME_INDEX_LENGTH = 8
+
+private fun extensionRank(name: String) = COMPAT_IMAGE_EXTENSIONS.indexOf(name.substring(FILENAME_INDEX_LENGTH))
+
+/**
+ * Page index of an image named by [SpiderDen.generateImageFilename], null if it isn't
+ */
+private fun parseImageIndex(name: String): Int? {
+    if (name.length <= FILENAME_INDEX_LENGTH) return null
+    if (name.substring(FILENAME_INDEX_LENGTH) !in COMPAT_IMAGE_EXTENSIONS) return null
+    val page = name.substring(0, FILENAME_INDEX_LENGTH).toIntOrNull() ?: return null
+    return (page - 1).takeIf { it >= 0 }
+}
+
+/**
+ * Image files of a download dir by page index, listed with one listFiles() pass and then
+ * kept up to date as pages are written or removed, so lookups need no IPC on SAF.
+ */
+private class DownloadDirIndex(dir: UniFile) {
+    class Entry(val file: UniFile, val name: String)
+
+    private val mEntries = ConcurrentHashMap<Int, Entry>()
+
+    val entries: Map<Int, Entry>
+        get() = mEntries
+
+    var packedFile: UniFile? = null
+        private set
+
+    init {
+        val names = mutableListOf<String>()
+        // Names come from the listing, UniFile.name may query the provider again
+        val files = dir.listFiles { _, name ->
+            (name == SpiderDen.PACKED_FILENAME || parseImageIndex(name) != null).also { if (it) names.add(name) }
+        }
+        files?.forEachIndexed { i, file ->
+            val name = names[i]
+            val index = parseImageIndex(name) ?: run {
+                packedFile = file
+                return@forEachIndexed
+            }
+            val old = mEntries[index]
+            // Same preference as probing extensions in order
+            if (old == null || extensionRank(name) < extensionRank(old.name)) {
+                mEntries[index] = Entry(file, name)
+            }
+        }
+    }
+
+    operator fun get(index: Int): Entry? = mEntries[index]
 
-        private fun findImageFile(dir: UniFile, index: Int): UniFile? {
-            for (extension in COMPAT_IMAGE_EXTENSIONS) {
-                val filename = generateImageFilename(index, extension)
-                val file = dir.findFile(filename)
-                if (file != null) {
-                    return file
+    fun put(index: Int, file: UniFile, name: String) {
+        mEntries[index] = Entry(file, name)
+    }
+
+    fun remove(index: Int): Entry? = mEntries.remove(index)
+}
+
+/**
+ * Pages of a download dir packed by [SpiderDen.packDownloadDir], found by their original names.
+ * The archive is closed when it's closed and no source handed out is open.
+ */
+private class PackedPages(file: UniFile) {
+    private val mAccessor = UriArchiveAccessor(application, file.uri)
+
+    // page index -> entry index
+    private val mEntries = hashMapOf<Int, Int>()
+    private val mNames = hashMapOf<Int, String>()
+    private var mOpenSources = 0
+    private var mClosed = false
+
+    init {
+        runCatching {
+            for (i in 0 until mAccessor.open()) {
+                val name = mAccessor.getFilename(i)
+                parseImageIndex(name)?.let {
+                    mEntries[it] = i
+                    mNames[it] = name
                 }
             }
-            return null
+        }.onFailure {
+            it.printStackTrace()
+        }
+    }
+
+    operator fun contains(index: Int) = index in mEntries
+
+    fun getName(index: Int) = mNames[index]
+
+    @Synchronized
+    fun getImageSource(index: Int): CloseableSource? {
+        if (mClosed) return null
+        val src = mEntries[index]?.let { mAccessor.getImageSource(it) } ?: return null
+        mOpenSources++
+        return object : CloseableSource {
+            override val source: ImageDecoder.Source
+                get() = src.source
+
+            override val provider: InputProvider?
+                get() = src.provider
+
+            override fun close() {
+                src.close()
+                release()
+            }
+        }
+    }
+
+    @Synchronized
+    fun extractToFd(index: Int, fd: Int): Boolean {
+        if (mClosed) return false
+        return mEntries[index]?.let { mAccessor.extractToFd(it, fd) } ?: false
+    }
+
+    @Synchronized
+    private fun release() {
+        if (--mOpenSources == 0 && mClosed) mAccessor.close()
+    }
+
+    @Synchronized
+    fun close() {
+        if (mClosed) return
+        mClosed = true
+        if (mOpenSources == 0) mAccessor.close()
+    }
+}
+
+private const val PARTIAL_EXPIRE_MILLIS = 24L * 60 * 60 * 1000
+
+private val sPartialDir by lazy {
+    File(application.cacheDir, "gallery_image_partial").apply {
+        mkdirs()
+        // Drop stale partial images
+        val expire = System.currentTimeMillis() - PARTIAL_EXPIRE_MILLIS
+        listFiles()?.forEach { if (it.lastModified() < expire) it.delete() }
+    }
+}
+
+private fun HttpResponse.contentRangeTotal(): Long? {
+    // bytes <first>-<last>/<total>
+    return headers[HttpHeaders.ContentRange]?.substringAfterLast('/', "")?.toLongOrNull()
+}
+
+@Serializable
+private class PartialInfo(val offset: Long, val total: Long, val extension: String)
+
+/**
+ * An image downloaded partly, kept in [dir] with a sidecar recording how many bytes are valid
+ */
+private class PartialImage(private val dir: UniFile, private val name: String) {
+    private val sidecarName = "$name.offset"
+    private var info = runCatching {
+        dir.subFile(sidecarName)!!.openFileDescriptor("r").use {
+            Cbor.decodeFromByteArray<PartialInfo>(FileInputStream(it.fileDescriptor).readBytes())
+        }.takeIf { it.offset <= dir.subFile(name)!!.length() }
+    }.getOrNull()
+
+    val offset: Long
+        get() = info?.offset ?: 0
+
+    val total: Long
+        get() = info?.total ?: -1
+
+    val extension: String?
+        get() = info?.extension
+
+    fun begin(total: Long, extension: String) {
+        writeInfo(PartialInfo(offset, total, extension))
+    }
+
+    /**
+     * Append data after the valid bytes, return valid bytes after appending
+     */
+    suspend fun append(channel: ByteReadChannel): Long {
+        val info = info!!
+        val file = dir.createFile(name) ?: throw IOException("Can't create $name")
+        file.openFileDescriptor("rw").use {
+            // Owned by the descriptor, closed with it
+            val out = FileOutputStream(it.fileDescriptor).channel
+            try {
+                out.truncate(info.offset)
+                out.position(info.offset)
+                channel.copyTo(out)
+            } finally {
+                writeInfo(PartialInfo(out.size(), info.total, info.extension))
+            }
+        }
+        return offset
+    }
+
+    fun openFileDescriptor(mode: String): ParcelFileDescriptor = dir.subFile(name)!!.openFileDescriptor(mode)
+
+    /**
+     * Rename the complete image to [filename] in [dir], return it or null if failed
+     */
+    fun renameTo(filename: String): UniFile? {
+        val file = dir.subFile(name)?.takeIf { it.renameTo(filename) } ?: return null
+        deleteSidecar()
+        return file
+    }
+
+    /**
+     * Move the complete image to [dst], [dir] must be a raw dir
+     */
+    fun moveTo(dst: File) {
+        val file = File(dir.uri.path!!, name)
+        if (!file.renameTo(dst)) file.copyTo(dst, true)
+    }
+
+    fun delete() {
+        dir.subFile(name)?.delete()
+        deleteSidecar()
+    }
+
+    private fun deleteSidecar() {
+        info = null
+        dir.subFile(sidecarName)?.delete()
+    }
+
+    private fun writeInfo(newInfo: PartialInfo) {
+        val bytes = Cbor.encodeToByteArray(newInfo)
+        val sidecar = dir.createFile(sidecarName) ?: throw IOException("Can't create $sidecarName")
+        sidecar.openFileDescriptor("rw").use {
+            Os.ftruncate(it.fileDescriptor, 0)
+            Os.write(it.fileDescriptor, bytes, 0, bytes.size)
         }
+        info = newInfo
     }
 }
@@ -3,6 +3,10 @@ package com.hippo.ehviewer.spider
 import coil.disk.DiskCache
 import com.hippo.compat.readLegacySpiderInfo
 import com.hippo.ehviewer.EhApplication
+import com.hippo.ehviewer.client.exception.ParseException
+import com.hippo.ehviewer.client.parser.GalleryDetailParser.parsePreviewPages
+import com.hippo.ehviewer.client.parser.GalleryDetailParser.parsePreviewSet
+import com.hippo.ehviewer.client.parser.GalleryPageUrlParser
 import com.hippo.unifile.UniFile
 import com.hippo.unifile.openInputStream
 import com.hippo.unifile.openOutputStream
@@ -47,6 +51,33 @@ fun SpiderInfo.saveToCache() {
     }
 }
 
+/**
+ * Read preview count and pTokens from the detail page, [index] is the index of the preview page
+ */
+@Throws(ParseException::class)
+fun SpiderInfo.readPreviews(body: String, index: Int) {
+    previewPages = parsePreviewPages(body)
+    val previewSet = parsePreviewSet(body)
+    if (previewSet.size() > 0) {
+        if (index == 0) {
+            previewPerPage = previewSet.size()
+        } else {
+            previewPerPage = previewSet.getPosition(0) / index
+        }
+    }
+    synchronized(pTokenMap) {
+        var i = 0
+        val n = previewSet.size()
+        while (i < n) {
+            val result = GalleryPageUrlParser.parse(previewSet.getPageUrlAt(i))
+            if (result != null) {
+                pTokenMap[result.page] = result.pToken
+            }
+            i++
+        }
+    }
+}
+
 private val spiderInfoCache by lazy {
     DiskCache.Builder()
         .directory(File(EhApplication.application.cacheDir, "spider_info_v2_1"))
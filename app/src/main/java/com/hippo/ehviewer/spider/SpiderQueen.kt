@@ -28,15 +28,12 @@ import com.hippo.ehviewer.client.EhEngine
 import com.hippo.ehviewer.client.EhRequestBuilder
 import com.hippo.ehviewer.client.EhUrl
 import com.hippo.ehviewer.client.EhUrl.getGalleryDetailUrl
-import com.hippo.ehviewer.client.EhUrl.getGalleryMultiPageViewerUrl
 import com.hippo.ehviewer.client.EhUrl.referer
 import com.hippo.ehviewer.client.data.GalleryInfo
 import com.hippo.ehviewer.client.exception.ParseException
 import com.hippo.ehviewer.client.parser.GalleryDetailParser.parsePages
-import com.hippo.ehviewer.client.parser.GalleryDetailParser.parsePreviewPages
-import com.hippo.ehviewer.client.parser.GalleryDetailParser.parsePreviewSet
-import com.hippo.ehviewer.client.parser.GalleryMultiPageViewerPTokenParser
-import com.hippo.ehviewer.client.parser.GalleryPageUrlParser
+import com.hippo.ehviewer.download.DownloadJournal
+import com.hippo.ehviewer.download.DownloadPacker
 import com.hippo.image.Image
 import com.hippo.unifile.UniFile
 import com.hippo.util.ExceptionUtils
@@ -57,117 +54,100 @@ import kotlinx.coroutines.sync.withPermit
 import moe.tarsin.coroutines.runSuspendCatching
 import okhttp3.executeAsync
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.math.abs
 
 class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineScope {
     override val coroutineContext = Dispatchers.IO + Job()
 
     @Volatile
-    lateinit var mPageStateArray: IntArray
+    lateinit var mPageStates: PageStates
     lateinit var mSpiderInfo: SpiderInfo
 
     val mSpiderDen: SpiderDen = SpiderDen(galleryInfo)
     val mPagePercentMap = ConcurrentHashMap<Int, Float>()
-    private val mPageStateLock = Any()
-    private val mDownloadedPages = AtomicInteger(0)
-    private val mFinishedPages = AtomicInteger(0)
     private val mPageErrorMap = ConcurrentHashMap<Int, String>()
-    private val mSpiderListeners: MutableList<OnSpiderListener> = ArrayList()
+    private val mSpiderListeners: MutableList<OnSpiderListener> = CopyOnWriteArrayList()
 
     private var mReadReference = 0
     private var mDownloadReference = 0
 
     fun addOnSpiderListener(listener: OnSpiderListener) {
-        synchronized(mSpiderListeners) { mSpiderListeners.add(listener) }
+        mSpiderListeners.add(listener)
     }
 
     fun removeOnSpiderListener(listener: OnSpiderListener) {
-        synchronized(mSpiderListeners) { mSpiderListeners.remove(listener) }
+        mSpiderListeners.remove(listener)
     }
 
     private fun notifyGetPages(pages: Int) {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach { it.onGetPages(pages) }
-        }
+        mSpiderListeners.forEach { it.onGetPages(pages) }
     }
 
     fun notifyGet509(index: Int) {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach { it.onGet509(index) }
-        }
+        mSpiderListeners.forEach { it.onGet509(index) }
     }
 
     fun notifyPageDownload(index: Int, contentLength: Long, receivedSize: Long, bytesRead: Int) {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach {
-                it.onPageDownload(
-                    index,
-                    contentLength,
-                    receivedSize,
-                    bytesRead
-                )
-            }
+        mSpiderListeners.forEach {
+            it.onPageDownload(
+                index,
+                contentLength,
+                receivedSize,
+                bytesRead
+            )
         }
     }
 
     private fun notifyPageSuccess(index: Int) {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach {
-                it.onPageSuccess(
-                    index,
-                    mFinishedPages.get(),
-                    mDownloadedPages.get(),
-                    mPageStateArray.size
-                )
-            }
+        mSpiderListeners.forEach {
+            it.onPageSuccess(
+                index,
+                mPageStates.finished,
+                mPageStates.downloaded,
+                mPageStates.size
+            )
         }
     }
 
     private fun notifyPageFailure(index: Int, error: String?) {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach {
-                it.onPageFailure(
-                    index,
-                    error,
-                    mFinishedPages.get(),
-                    mDownloadedPages.get(),
-                    mPageStateArray.size
-                )
-            }
+        mSpiderListeners.forEach {
+            it.onPageFailure(
+                index,
+                error,
+                mPageStates.finished,
+                mPageStates.downloaded,
+                mPageStates.size
+            )
         }
     }
 
     private fun notifyAllPageDownloaded() {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach {
-                it.onFinish(
-                    mFinishedPages.get(),
-                    mDownloadedPages.get(),
-                    mPageStateArray.size
-                )
-            }
+        mSpiderListeners.forEach {
+            it.onFinish(
+                mPageStates.finished,
+                mPageStates.downloaded,
+                mPageStates.size
+            )
         }
     }
 
     fun notifyGetImageSuccess(index: Int, image: Image) {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach {
-                it.onGetImageSuccess(index, image)
-            }
+        mSpiderListeners.forEach {
+            it.onGetImageSuccess(index, image)
         }
     }
 
     fun notifyGetImageFailure(index: Int, error: String) {
-        synchronized(mSpiderListeners) {
-            mSpiderListeners.forEach {
-                it.onGetImageFailure(index, error)
-            }
+        mSpiderListeners.forEach {
+            it.onGetImageFailure(index, error)
         }
     }
 
+    @Volatile
     private var downloadMode = false
     val isReady
-        get() = this::mSpiderInfo.isInitialized && this::mPageStateArray.isInitialized
+        get() = this::mSpiderInfo.isInitialized && this::mPageStates.isInitialized
 
     @Synchronized
     private fun updateMode() {
@@ -182,23 +162,15 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
         // Update download page
         val intoDownloadMode = mode == MODE_DOWNLOAD
         if (intoDownloadMode && !downloadMode) {
-            // Clear download state
-            synchronized(mPageStateLock) {
-                val temp: IntArray = mPageStateArray
-                var i = 0
-                val n = temp.size
-                while (i < n) {
-                    val oldState = temp[i]
-                    if (STATE_DOWNLOADING != oldState) {
-                        temp[i] = STATE_NONE
-                    }
-                    i++
-                }
-                mDownloadedPages.lazySet(0)
-                mFinishedPages.lazySet(0)
-                mPageErrorMap.clear()
-                mPagePercentMap.clear()
+            // Journal pages finished from now on
+            downloadMode = true
+            // Clear download state page by page, so counters follow workers finishing pages meanwhile
+            val states = mPageStates
+            for (i in 0 until states.size) {
+                states.update(i) { if (it == STATE_DOWNLOADING) it else STATE_NONE }
             }
+            mPageErrorMap.clear()
+            mPagePercentMap.clear()
             mWorkerScope.enterDownloadMode()
         }
         downloadMode = intoDownloadMode
@@ -223,8 +195,10 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
     private val prepareJob = launchIO { doPrepare() }
 
     private suspend fun doPrepare() {
+        // Pages of a dir being packed are deleted once the archive is complete
+        DownloadPacker.awaitPacked(galleryInfo.gid)
         mSpiderInfo = readSpiderInfoFromLocal() ?: readSpiderInfoFromInternet() ?: return
-        mPageStateArray = IntArray(mSpiderInfo.pages)
+        mPageStates = PageStates(mSpiderInfo.pages)
         notifyGetPages(mSpiderInfo.pages)
     }
 
@@ -242,10 +216,48 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
     private fun stop() {
         launchNonCancellable { runCatching { writeSpiderInfoToLocal() } }
         cancel()
+        mSpiderDen.close()
+        Log.d(TAG, "Fetch preemptions of ${galleryInfo.gid}: $preemptions, pToken fetches: $pTokenFetchCount")
+        FetchScheduler.clearPreemptions(galleryInfo.gid)
     }
 
+    /**
+     * Snapshot of what the viewer shows, read by [fetchPriority] without locking
+     *
+     * @param onScreen pages bound by the viewer
+     * @param focus page being read
+     * @param preload planned pages to their order in the plan
+     */
+    private class Ranks(val onScreen: Set<Int>, val focus: Int, val preload: Map<Int, Int>)
+
+    @Volatile
+    private var mRanks = Ranks(emptySet(), 0, emptyMap())
+    private val mRanksLock = Any()
+
+    private fun updateRanks(block: (Ranks) -> Ranks) {
+        synchronized(mRanksLock) { mRanks = block(mRanks) }
+    }
+
+    /**
+     * Fetch order of page [index], lower goes first: pages on screen by distance to the one
+     * read, then preloads in plan order, forward by distance before backward, then the rest of
+     * a download in page order
+     */
+    private fun fetchPriority(index: Int): Int {
+        val ranks = mRanks
+        if (index in ranks.onScreen) return abs(index - ranks.focus)
+        ranks.preload[index]?.let { return PRIORITY_PRELOAD + it }
+        return PRIORITY_BACKGROUND + index
+    }
+
+    /**
+     * Fetches which went ahead of an earlier queued one of this gallery
+     */
+    val preemptions: Int
+        get() = FetchScheduler.getPreemptions(galleryInfo.gid)
+
     val size
-        get() = mPageStateArray.size
+        get() = mPageStates.size
 
     val error: String?
         get() = null
@@ -259,31 +271,36 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
     }
 
     private fun getPageState(index: Int): Int {
-        synchronized(mPageStateLock) {
-            return if (index >= 0 && index < mPageStateArray.size) {
-                mPageStateArray[index]
-            } else {
-                STATE_NONE
-            }
+        return if (index >= 0 && index < mPageStates.size) {
+            mPageStates[index]
+        } else {
+            STATE_NONE
         }
     }
 
     fun cancelRequest(index: Int) {
+        updateRanks { Ranks(it.onScreen - index, it.focus, it.preload) }
         mWorkerScope.cancelDecode(index)
     }
 
+    /**
+     * @param pages pages to fetch ahead, in the order they will be needed
+     */
     fun preloadPages(pages: List<Int>, pair: Pair<Int, Int>) {
+        updateRanks { ranks -> Ranks(ranks.onScreen, ranks.focus, pages.withIndex().associate { it.value to it.index }) }
         mWorkerScope.updateRAList(pages, pair)
     }
 
     private fun request(index: Int, force: Boolean) {
+        updateRanks { Ranks(it.onScreen + index, it.focus, it.preload) }
         // Get page state
         val state = getPageState(index)
 
         // Fix state for force
         if (force && (state == STATE_FINISHED || state == STATE_FAILED) || state == STATE_FAILED) {
-            // Update state to none at once
-            updatePageState(index, STATE_NONE)
+            // Update state to none at once, unless a worker has changed it meanwhile
+            val changed = mPageStates.update(index) { if (it == state) STATE_NONE else it } == state
+            if (changed) onPageStateChanged(index, state, STATE_NONE, null)
         }
         mWorkerScope.launch(index, force)
     }
@@ -317,6 +334,8 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
 
     fun putStartPage(page: Int) {
         mSpiderInfo.startPage = page
+        // Queued fetches are ranked by this when the next permit is handed out
+        updateRanks { Ranks(it.onScreen, page, it.preload) }
     }
 
     private fun readSpiderInfoFromLocal(): SpiderInfo? {
@@ -330,28 +349,6 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
             ?: readFromCache(galleryInfo.gid)?.takeIf { it.gid == galleryInfo.gid && it.token == galleryInfo.token }
     }
 
-    @Throws(ParseException::class)
-    private fun readPreviews(body: String, index: Int, spiderInfo: SpiderInfo) {
-        spiderInfo.previewPages = parsePreviewPages(body)
-        val previewSet = parsePreviewSet(body)
-        if (previewSet.size() > 0) {
-            if (index == 0) {
-                spiderInfo.previewPerPage = previewSet.size()
-            } else {
-                spiderInfo.previewPerPage = previewSet.getPosition(0) / index
-            }
-        }
-        var i = 0
-        val n = previewSet.size()
-        while (i < n) {
-            val result = GalleryPageUrlParser.parse(previewSet.getPageUrlAt(i))
-            if (result != null) {
-                spiderInfo.pTokenMap[result.page] = result.pToken
-            }
-            i++
-        }
-    }
-
     private suspend fun readSpiderInfoFromInternet(): SpiderInfo? {
         val request = EhRequestBuilder(
             getGalleryDetailUrl(
@@ -364,7 +361,7 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
                 val pages = parsePages(body)
                 val spiderInfo = SpiderInfo(galleryInfo.gid, pages)
                 spiderInfo.token = galleryInfo.token
-                readPreviews(body, 0, spiderInfo)
+                spiderInfo.readPreviews(body, 0)
                 spiderInfo
             }
         }.onFailure {
@@ -372,63 +369,21 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
         }.getOrNull()
     }
 
-    fun getPTokenFromMultiPageViewer(index: Int): String? {
-        val spiderInfo = mSpiderInfo
-        val url = getGalleryMultiPageViewerUrl(
-            galleryInfo.gid, galleryInfo.token!!
-        )
-        val referer = referer
-        val request = EhRequestBuilder(url, referer).build()
-        try {
-            okHttpClient.newCall(request).execute().use { response ->
-                val body = response.body.string()
-                val list = GalleryMultiPageViewerPTokenParser.parse(body)
-                for (i in list.indices) {
-                    spiderInfo.pTokenMap[i] = list[i]
-                }
-                return spiderInfo.pTokenMap[index]
-            }
-        } catch (e: Throwable) {
-            ExceptionUtils.throwIfFatal(e)
-            return null
-        }
-    }
-
-    fun getPTokenFromInternet(index: Int): String? {
-        val spiderInfo = mSpiderInfo
+    private val mPTokenResolver by lazy { PTokenResolver(galleryInfo, mSpiderInfo, this) }
 
-        // Check previewIndex
-        var previewIndex: Int
-        previewIndex = if (spiderInfo.previewPerPage >= 0) {
-            index / spiderInfo.previewPerPage
-        } else {
-            0
-        }
-        if (spiderInfo.previewPages > 0) {
-            previewIndex = previewIndex.coerceAtMost(spiderInfo.previewPages - 1)
-        }
-        val url = getGalleryDetailUrl(
-            galleryInfo.gid, galleryInfo.token, previewIndex, false
-        )
-        val referer = referer
-        val request = EhRequestBuilder(url, referer).build()
-        try {
-            okHttpClient.newCall(request).execute().use { response ->
-                val body = response.body.string()
-                readPreviews(body, previewIndex, spiderInfo)
-                return spiderInfo.pTokenMap[index]
-            }
-        } catch (e: Throwable) {
-            ExceptionUtils.throwIfFatal(e)
-            return null
-        }
-    }
+    /**
+     * Network requests made for pToken of this gallery
+     */
+    val pTokenFetchCount: Int
+        get() = if (isReady) mPTokenResolver.fetchCount else 0
 
     @Synchronized
     private fun writeSpiderInfoToLocal() {
         if (!isReady) return
-        mSpiderDen.downloadDir?.run { createFile(SPIDER_INFO_FILENAME).also { mSpiderInfo.write(it) } }
-        mSpiderInfo.saveToCache()
+        synchronized(mSpiderInfo.pTokenMap) {
+            mSpiderDen.downloadDir?.run { createFile(SPIDER_INFO_FILENAME).also { mSpiderInfo.write(it) } }
+            mSpiderInfo.saveToCache()
+        }
     }
 
     private fun isStateDone(state: Int): Boolean {
@@ -437,32 +392,27 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
 
     @JvmOverloads
     fun updatePageState(index: Int, @State state: Int, error: String? = null) {
-        var oldState: Int
-        synchronized(mPageStateLock) {
-            oldState = mPageStateArray[index]
-            mPageStateArray[index] = state
-            if (!isStateDone(oldState) && isStateDone(state)) {
-                mDownloadedPages.incrementAndGet()
-            } else if (isStateDone(oldState) && !isStateDone(state)) {
-                mDownloadedPages.decrementAndGet()
-            }
-            if (oldState != STATE_FINISHED && state == STATE_FINISHED) {
-                mFinishedPages.incrementAndGet()
-            } else if (oldState == STATE_FINISHED && state != STATE_FINISHED) {
-                mFinishedPages.decrementAndGet()
-            }
+        val oldState = mPageStates.set(index, state)
+        onPageStateChanged(index, oldState, state, error)
+    }
 
-            // Clear
-            if (state == STATE_DOWNLOADING) {
-                mPageErrorMap.remove(index)
-            } else if (isStateDone(state)) {
-                mPagePercentMap.remove(index)
-            }
+    private fun onPageStateChanged(index: Int, oldState: Int, @State state: Int, error: String?) {
+        if (oldState != STATE_FINISHED && state == STATE_FINISHED) {
+            if (downloadMode) DownloadJournal.putPageFinished(galleryInfo.gid, index)
+        } else if (oldState == STATE_FINISHED && state != STATE_FINISHED) {
+            if (downloadMode) DownloadJournal.putPageRemoved(galleryInfo.gid, index)
+        }
 
-            // Get default error
-            if (state == STATE_FAILED) {
-                mPageErrorMap[index] = error ?: GetText.getString(R.string.error_unknown)
-            }
+        // Clear
+        if (state == STATE_DOWNLOADING) {
+            mPageErrorMap.remove(index)
+        } else if (isStateDone(state)) {
+            mPagePercentMap.remove(index)
+        }
+
+        // Get default error
+        if (state == STATE_FAILED) {
+            mPageErrorMap[index] = error ?: GetText.getString(R.string.error_unknown)
         }
 
         // Notify listeners
@@ -471,7 +421,7 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
         } else if (state == STATE_FINISHED) {
             notifyPageSuccess(index)
         }
-        if (mDownloadedPages.get() == size) notifyAllPageDownloaded()
+        if (mPageStates.downloaded == size) notifyAllPageDownloaded()
     }
 
     @IntDef(MODE_READ, MODE_DOWNLOAD)
@@ -511,6 +461,13 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
             }
         }
 
+        /**
+         * A [SpiderQueen] of [gid] is being read or downloaded
+         */
+        fun isAlive(gid: Long): Boolean {
+            return sQueenMap[gid] != null
+        }
+
         @JvmStatic
         fun releaseSpiderQueen(queen: SpiderQueen, @Mode mode: Int) {
             queen.run {
@@ -518,6 +475,7 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
                 if (mReadReference == 0 && mDownloadReference == 0) {
                     stop()
                     sQueenMap.remove(galleryInfo.gid)
+                    DownloadPacker.onSpiderReleased(galleryInfo.gid)
                 } else {
                     launchIO { if (awaitReady()) updateMode() }
                 }
@@ -527,8 +485,6 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
 
     private val mWorkerScope = object {
         private val mFetcherJobMap = hashMapOf<Int, Job>()
-        private val mSemaphore = Semaphore(Settings.multiThreadDownload)
-        private val pTokenLock = Mutex()
         private var showKey: String? = null
         private val showKeyLock = Mutex()
         private val mDownloadDelay = Settings.downloadDelay
@@ -541,7 +497,14 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
         @Synchronized
         fun enterDownloadMode() {
             if (isDownloadMode) return
-            updateRAList((0 until size).toList())
+            // Pages journaled by an earlier run are in download dir, unless it was moved or
+            // cleaned since, so the journal is only trusted for images still listed there
+            val finished = DownloadJournal.getFinishedPages(galleryInfo.gid)
+            val (done, pending) = (0 until size).partition {
+                finished?.get(it) == true && mSpiderDen.isInDownloadDir(it)
+            }
+            done.forEach { updatePageState(it, STATE_FINISHED) }
+            updateRAList(pending)
             isDownloadMode = true
         }
 
@@ -560,14 +523,16 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
         }
 
         private fun doLaunchDownloadJob(index: Int, force: Boolean) {
-            val state = mPageStateArray[index]
+            val state = mPageStates[index]
             if (!force && state == STATE_FINISHED) return
             val currentJob = mFetcherJobMap[index]
             if (force) currentJob?.cancel()
             if (currentJob?.isActive != true) {
+                // Reading takes the readers' permits, so it doesn't queue behind downloads
+                val interactive = !downloadMode
                 mFetcherJobMap[index] = launch {
-                    mSemaphore.withPermit {
-                        doInJob(index, force)
+                    FetchScheduler.withPermit(galleryInfo.gid, interactive, { fetchPriority(index) }) {
+                        doInJob(index, force, interactive)
                     }
                 }.apply {
                     invokeOnCompletion {
@@ -587,37 +552,22 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
             decoder.launch(index)
         }
 
-        private suspend fun doInJob(index: Int, force: Boolean) {
-            fun getPToken(index: Int): String? {
-                if (index !in 0 until size) return null
-                return mSpiderInfo.pTokenMap[index].takeIf { it != TOKEN_FAILED }
-                    ?: getPTokenFromInternet(index)
-                    ?: getPTokenFromInternet(index)
-                    ?: getPTokenFromMultiPageViewer(index)
-            }
+        private suspend fun doInJob(index: Int, force: Boolean, interactive: Boolean) {
             updatePageState(index, STATE_DOWNLOADING)
             if (!force && index in mSpiderDen) {
                 return updatePageState(index, STATE_FINISHED)
             }
             if (force) {
-                pTokenLock.withLock {
-                    val pToken = mSpiderInfo.pTokenMap[index]
-                    if (pToken == TOKEN_FAILED) mSpiderInfo.pTokenMap.remove(index)
-                }
+                mPTokenResolver.invalidate(index)
             }
-            val previousPToken: String?
-            val pToken: String
-
-            pTokenLock.withLock {
-                pToken = getPToken(index) ?: return updatePageState(
-                    index,
-                    STATE_FAILED,
-                    PTOKEN_FAILED_MESSAGE
-                ).also {
-                    mSpiderInfo.pTokenMap[index] = TOKEN_FAILED
-                }
-                previousPToken = getPToken(index - 1)
+            val pToken = mPTokenResolver.resolve(index) ?: return updatePageState(
+                index,
+                STATE_FAILED,
+                PTOKEN_FAILED_MESSAGE
+            ).also {
+                mPTokenResolver.markFailed(index)
             }
+            val previousPToken = mPTokenResolver.resolve(index - 1)
 
             var skipHathKey: String? = null
             val skipHathKeys = mutableListOf<String>()
@@ -648,6 +598,7 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
                                     if (check509(it.imageUrl)) {
                                         // Get 509
                                         notifyGet509(index)
+                                        HostLimiter.on509()
                                         error = ERROR_509
                                         return@repeat
                                     }
@@ -699,6 +650,7 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
                             if (check509(it.imageUrl)) {
                                 // Get 509
                                 notifyGet509(index)
+                                HostLimiter.on509()
                                 error = ERROR_509
                                 return@repeat
                             }
@@ -739,13 +691,16 @@ class SpiderQueen private constructor(val galleryInfo: GalleryInfo) : CoroutineS
                     val success: Boolean = mSpiderDen.makeHttpCallAndSaveImage(
                         index,
                         targetImageUrl,
-                        referer
+                        referer,
+                        // Other galleries and hosts take the fetch permit while this host is busy
+                        { FetchScheduler.releaseWhile(galleryInfo.gid, interactive, { fetchPriority(index) }) { it() } }
                     ) { contentLength: Long, receivedSize: Long, bytesRead: Int ->
                         mPagePercentMap[index] = receivedSize.toFloat() / contentLength
                         notifyPageDownload(index, contentLength, receivedSize, bytesRead)
                     }
 
                     if (!success) {
+                        // Partial data is kept by SpiderDen, next try resumes from it
                         Log.e(WORKER_DEBUG_TAG, "Can't download all of image data")
                         error = "Incomplete"
                         forceHtml = true
@@ -825,6 +780,9 @@ private val URL_509_ARRAY = arrayOf(
     "https://exhentai.org/img/509.gif",
     "https://exhentai.org/img/509s.gif"
 )
+private const val TAG = "SpiderQueen"
 private const val WORKER_DEBUG_TAG = "SpiderQueenWorker"
+private const val PRIORITY_PRELOAD = 1 shl 20
+private const val PRIORITY_BACKGROUND = 1 shl 24
 
 private fun check509(url: String) = url in URL_509_ARRAY
\ No newline at end of file
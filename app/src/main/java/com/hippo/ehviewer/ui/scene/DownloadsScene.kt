@@ -628,6 +628,14 @@ class DownloadsScene : BaseToolbarScene(), DownloadInfoListener, OnClickFabListe
         }
     }
 
+    override fun onUpdateRange(infos: List<DownloadInfo>) {
+        val adapter = mAdapter ?: return
+        val gids = infos.mapTo(HashSet()) { it.gid }
+        mList?.forEachIndexed { index, info ->
+            if (info.gid in gids) adapter.notifyItemChanged(index)
+        }
+    }
+
     @SuppressLint("NotifyDataSetChanged")
     override fun onUpdateAll() {
         if (mAdapter != null) {
@@ -1215,6 +1215,10 @@ class GalleryDetailScene : CollapsingToolbarScene(), View.OnClickListener, Downl
         updateDownloadState()
     }
 
+    override fun onUpdateRange(infos: List<DownloadInfo>) {
+        updateDownloadState()
+    }
+
     override fun onUpdateAll() {
         updateDownloadState()
     }
@@ -176,6 +176,7 @@ class GalleryListScene : SearchBarScene(), OnDragHandlerListener, SearchLayout.H
         }
 
         override fun onUpdate(info: DownloadInfo, list: List<DownloadInfo>) {}
+        override fun onUpdateRange(infos: List<DownloadInfo>) {}
         override fun onUpdateAll() {}
         override fun onReload() {
             mAdapter?.notifyDataSetChanged()
@@ -84,6 +84,7 @@ class HistoryScene : BaseToolbarScene() {
             }
 
             override fun onUpdate(info: DownloadInfo, list: List<DownloadInfo>) {}
+            override fun onUpdateRange(infos: List<DownloadInfo>) {}
             override fun onUpdateAll() {}
             override fun onReload() {
                 mAdapter.notifyDataSetChanged()
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 Tarsin Norbin
+ *
+ * This file is part of EhViewer
+ *
+ * EhViewer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * EhViewer is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with EhViewer.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.hippo.image
+
+import android.graphics.Bitmap
+import com.hippo.yorozuya.MathUtils
+import com.hippo.yorozuya.OSUtils
+
+/**
+ * Released software bitmaps, handed out again to decoders which can decode into an existing
+ * bitmap. A bitmap of the same size and config is preferred, a larger one is reconfigured.
+ * The least recently released bitmaps are recycled when the pool is over its budget.
+ */
+object BitmapPool {
+    private const val MIN_POOL_SIZE = 16L * 1024 * 1024
+    private const val MAX_POOL_SIZE = 64L * 1024 * 1024
+
+    // Reconfiguring a bitmap more than twice as large wastes too much of it
+    private const val MAX_WASTE_RATIO = 2
+
+    private val mMaxBytes = MathUtils.clamp(OSUtils.getTotalMemory() / 64, MIN_POOL_SIZE, MAX_POOL_SIZE)
+
+    // Least recently released first
+    private val mBitmaps = ArrayDeque<Bitmap>()
+    private var mBytes = 0L
+    private var mHits = 0L
+    private var mMisses = 0L
+
+    /**
+     * Bitmaps handed out from the pool
+     */
+    val hits: Long
+        @Synchronized get() = mHits
+
+    /**
+     * Requests the pool couldn't serve
+     */
+    val misses: Long
+        @Synchronized get() = mMisses
+
+    /**
+     * A mutable bitmap of [width] x [height] in [config] with undefined content, null if none
+     */
+    @Synchronized
+    fun get(width: Int, height: Int, config: Bitmap.Config): Bitmap? {
+        val needed = width.toLong() * height * bytesPerPixel(config)
+        val bitmap = mBitmaps.lastOrNull { it.width == width && it.height == height && it.config == config }
+            ?: mBitmaps.lastOrNull { it.allocationByteCount in needed..needed * MAX_WASTE_RATIO }
+        if (bitmap == null) {
+            mMisses++
+            return null
+        }
+        mBitmaps.remove(bitmap)
+        mBytes -= bitmap.allocationByteCount
+        mHits++
+        if (bitmap.width != width || bitmap.height != height || bitmap.config != config) {
+            bitmap.reconfigure(width, height, config)
+        }
+        return bitmap
+    }
+
+    /**
+     * Give [bitmap] to the pool, bitmaps which can't be reused are recycled at once
+     */
+    @Synchronized
+    fun put(bitmap: Bitmap) {
+        if (bitmap.isRecycled) return
+        if (!bitmap.isMutable || bitmap.config == Bitmap.Config.HARDWARE || bitmap.allocationByteCount > mMaxBytes) {
+            bitmap.recycle()
+            return
+        }
+        mBitmaps.addLast(bitmap)
+        mBytes += bitmap.allocationByteCount
+        while (mBytes > mMaxBytes) {
+            val evicted = mBitmaps.removeFirst()
+            mBytes -= evicted.allocationByteCount
+            evicted.recycle()
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        mBitmaps.forEach { it.recycle() }
+        mBitmaps.clear()
+        mBytes = 0
+    }
+
+    private fun bytesPerPixel(config: Bitmap.Config) = when (config) {
+        Bitmap.Config.ALPHA_8 -> 1
+        Bitmap.Config.RGB_565, Bitmap.Config.ARGB_4444 -> 2
+        Bitmap.Config.RGBA_F16 -> 8
+        else -> 4
+    }
+}
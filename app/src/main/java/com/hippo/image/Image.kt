@@ -17,50 +17,193 @@
  */
 package com.hippo.image
 
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
 import android.graphics.ColorSpace
 import android.graphics.ImageDecoder
 import android.graphics.ImageDecoder.ImageInfo
 import android.graphics.ImageDecoder.Source
+import android.graphics.Paint
+import android.graphics.Rect
 import android.graphics.drawable.AnimatedImageDrawable
 import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import android.os.Build
+import android.os.Debug
+import com.davemorrissey.labs.subscaleview.provider.InputProvider
 import com.hippo.ehviewer.EhApplication
 import com.hippo.ehviewer.R
 import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.math.min
+import kotlin.math.sqrt
 
-class Image private constructor(private val src: CloseableSource) {
-    var mObtainedDrawable: Drawable? =
+class Image private constructor(private val src: CloseableSource?, drawable: Drawable?) {
+    /**
+     * Set when the image is too large to show at once. The drawable is a preview then, viewers
+     * decode regions of the original from this until the image is recycled.
+     */
+    var regionProvider: InputProvider? = null
+        private set
+
+    var mObtainedDrawable: Drawable? = drawable ?: decodeDrawable(src!!)
+        private set
+
+    /**
+     * A downsampled stand-in shown until the page is decoded again, nothing to release
+     */
+    val isPreview: Boolean
+        get() = src == null
+
+    private fun decodeDrawable(src: CloseableSource): Drawable =
         ImageDecoder.decodeDrawable(src.source) { decoder: ImageDecoder, info: ImageInfo, _: Source ->
-            if (Build.VERSION.SDK_INT == Build.VERSION_CODES.P) {
-                // Allocating hardware bitmap may cause a crash on framework versions prior to Android Q
+            var sampleSize = calculateSampleSize(info, 2 * screenHeight, 2 * screenWidth)
+            if (useRegionDecoder(info, sampleSize)) {
+                regionProvider = src.provider
+                // Viewers decode what they show from the source, the drawable only stands in
+                if (regionProvider != null) sampleSize = calculatePreviewSampleSize(info)
+            }
+            if (useHardwareBitmap(info, sampleSize)) {
+                decoder.allocator = ImageDecoder.ALLOCATOR_HARDWARE
+            } else {
                 decoder.allocator = ImageDecoder.ALLOCATOR_SOFTWARE
             }
             decoder.setTargetColorSpace(colorSpace)
-            decoder.setTargetSampleSize(
-                calculateSampleSize(info, 2 * screenHeight, 2 * screenWidth)
-            )
+            decoder.setTargetSampleSize(sampleSize)
         }.also {
             (it as? BitmapDrawable)?.run {
-                src.close()
+                // Regions are decoded from the source until recycled
+                if (regionProvider == null) src.close()
+                onDecoded(bitmap)
             }
         }
-        private set
 
     val size: Int
         get() = mObtainedDrawable!!.run { intrinsicHeight * intrinsicWidth * 4 * if (this is AnimatedImageDrawable) 4 else 1 }
 
+    /**
+     * A copy of at most [maxPixels] pixels to show while the page is decoded again, in RGB_565
+     * unless the page has alpha. Null if animated or recycled.
+     */
+    @Synchronized
+    fun createPreview(maxPixels: Int): Bitmap? {
+        val bitmap = (mObtainedDrawable as? BitmapDrawable)?.bitmap ?: return null
+        val scale = sqrt(maxPixels.toDouble() / (bitmap.width * bitmap.height)).coerceAtMost(1.0)
+        val width = (bitmap.width * scale).toInt().coerceAtLeast(1)
+        val height = (bitmap.height * scale).toInt().coerceAtLeast(1)
+        // Software canvas can't draw hardware bitmaps, read it back first
+        val source = if (bitmap.config == Bitmap.Config.HARDWARE) bitmap.copy(Bitmap.Config.ARGB_8888, false) else bitmap
+        val config = if (bitmap.hasAlpha()) Bitmap.Config.ARGB_8888 else Bitmap.Config.RGB_565
+        val preview = BitmapPool.get(width, height, config)?.apply { eraseColor(Color.TRANSPARENT) }
+            ?: Bitmap.createBitmap(width, height, config)
+        Canvas(preview).drawBitmap(source, null, Rect(0, 0, width, height), Paint(Paint.FILTER_BITMAP_FLAG))
+        if (source !== bitmap) source.recycle()
+        return preview
+    }
+
     @Synchronized
     fun recycle() {
         (mObtainedDrawable as? AnimatedImageDrawable)?.stop()
-        (mObtainedDrawable as? BitmapDrawable)?.bitmap?.recycle()
+        // A preview may still be drawn, leave it to the GC. Pages aren't pooled, ImageDecoder
+        // can't decode into an existing bitmap and nothing else asks for one that large.
+        if (!isPreview) (mObtainedDrawable as? BitmapDrawable)?.bitmap?.recycle()
         mObtainedDrawable?.callback = null
-        (mObtainedDrawable as? AnimatedImageDrawable)?.let { src.close() }
+        if (mObtainedDrawable is AnimatedImageDrawable || regionProvider != null) src?.close()
+        regionProvider = null
         mObtainedDrawable = null
     }
 
     companion object {
+        // Hardware bitmaps must fit in a texture, this is the least limit of devices we support
+        private const val MAX_HARDWARE_BITMAP_SIZE = 8192
+        private const val STRIP_SCREENS = 2
+
+        // Strip previews are a quarter of the screen wide
+        private const val STRIP_PREVIEW_RATIO = 4
+
+        /**
+         * Set by the viewer in use. Paged viewers keep pages in hardware bitmaps, which live out
+         * of the heap and are never copied to a texture again. Continuous viewers keep long strips
+         * in software bitmaps, so they can be read by region.
+         */
+        @Volatile
+        var preferHardwareBitmap = true
+
+        private val sHardwareDecoded = AtomicLong()
+        private val sSoftwareDecoded = AtomicLong()
+        private val sBytesDecoded = AtomicLong()
+
+        private fun useHardwareBitmap(info: ImageInfo, sampleSize: Int): Boolean {
+            // Allocating hardware bitmap may cause a crash on framework versions prior to Android Q
+            if (Build.VERSION.SDK_INT == Build.VERSION_CODES.P || !preferHardwareBitmap) return false
+            return info.size.width / sampleSize <= MAX_HARDWARE_BITMAP_SIZE &&
+                info.size.height / sampleSize <= MAX_HARDWARE_BITMAP_SIZE
+        }
+
+        // Formats BitmapRegionDecoder reads
+        private val REGION_DECODER_MIME_TYPES = setOf("image/jpeg", "image/png", "image/webp", "image/heif")
+
+        /**
+         * Images too large to show at full resolution at once are read by region instead, and so
+         * are strips, which webtoon viewers show a band at a time
+         */
+        private fun useRegionDecoder(info: ImageInfo, sampleSize: Int): Boolean {
+            if (info.isAnimated || info.mimeType !in REGION_DECODER_MIME_TYPES) return false
+            return sampleSize > 1 || isStrip(info) ||
+                info.size.width > MAX_HARDWARE_BITMAP_SIZE || info.size.height > MAX_HARDWARE_BITMAP_SIZE
+        }
+
+        // Taller than STRIP_SCREENS screens once fit to the screen width
+        private fun isStrip(info: ImageInfo): Boolean {
+            return info.size.height.toLong() * screenWidth > STRIP_SCREENS.toLong() * screenHeight * info.size.width
+        }
+
+        private fun calculatePreviewSampleSize(info: ImageInfo): Int {
+            // Strips are fit to width, fitting the height would keep them at full size
+            if (isStrip(info)) return (info.size.width * STRIP_PREVIEW_RATIO / screenWidth).coerceAtLeast(1)
+            return maxOf(info.size.width / screenWidth, info.size.height / screenHeight).coerceAtLeast(1)
+        }
+
+        private fun onDecoded(bitmap: Bitmap) {
+            if (bitmap.config == Bitmap.Config.HARDWARE) sHardwareDecoded.incrementAndGet() else sSoftwareDecoded.incrementAndGet()
+            sBytesDecoded.addAndGet(bitmap.allocationByteCount.toLong())
+        }
+
+        /**
+         * Decode counters of this process, with GC counters of the runtime
+         */
+        class Stats(
+            val hardwareDecoded: Long,
+            val softwareDecoded: Long,
+            val bytesDecoded: Long,
+            val poolHits: Long,
+            val poolMisses: Long,
+            val gcCount: Long,
+            val gcTimeMillis: Long,
+            val blockingGcCount: Long,
+            val blockingGcTimeMillis: Long,
+        ) {
+            override fun toString() = "decoded $hardwareDecoded hardware, $softwareDecoded software, " +
+                "$bytesDecoded bytes, pool hits $poolHits, misses $poolMisses, " +
+                "GC $gcCount in $gcTimeMillis ms, blocking GC $blockingGcCount in $blockingGcTimeMillis ms"
+        }
+
+        val stats: Stats
+            get() = Stats(
+                sHardwareDecoded.get(),
+                sSoftwareDecoded.get(),
+                sBytesDecoded.get(),
+                BitmapPool.hits,
+                BitmapPool.misses,
+                runtimeStat("art.gc.gc-count"),
+                runtimeStat("art.gc.gc-time"),
+                runtimeStat("art.gc.blocking-gc-count"),
+                runtimeStat("art.gc.blocking-gc-time"),
+            )
+
+        private fun runtimeStat(name: String) = Debug.getRuntimeStat(name)?.toLongOrNull() ?: -1
+
         fun calculateSampleSize(info: ImageInfo, targetHeight: Int, targetWeight: Int): Int {
             return min(
                 info.size.width / targetWeight,
@@ -88,10 +231,17 @@ class Image private constructor(private val src: CloseableSource) {
             ) ColorSpace.Named.DISPLAY_P3 else ColorSpace.Named.SRGB
         )
 
+        /**
+         * Wrap [bitmap] made by [createPreview]
+         */
+        fun preview(bitmap: Bitmap): Image {
+            return Image(null, BitmapDrawable(EhApplication.application.resources, bitmap))
+        }
+
         @JvmStatic
         fun decode(src: CloseableSource): Image? {
             return runCatching {
-                Image(src)
+                Image(src, null)
             }.onFailure {
                 src.close()
                 it.printStackTrace()
@@ -107,5 +257,10 @@ class Image private constructor(private val src: CloseableSource) {
 
     interface CloseableSource : AutoCloseable {
         val source: Source
+
+        /**
+         * Reopens the source as a stream, valid until closed, null if it can't
+         */
+        val provider: InputProvider?
     }
 }
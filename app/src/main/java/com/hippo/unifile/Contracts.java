@@ -25,6 +25,7 @@ import android.os.ParcelFileDescriptor;
 
 import androidx.annotation.NonNull;
 
+import com.davemorrissey.labs.subscaleview.provider.InputProvider;
 import com.hippo.image.Image;
 
 import java.io.IOException;
@@ -97,6 +98,17 @@ final class Contracts {
                 return source;
             }
 
+            @Override
+            public InputProvider getProvider() {
+                return () -> {
+                    var is = context.getContentResolver().openInputStream(uri);
+                    if (is == null) {
+                        throw new IOException("Can't open InputStream");
+                    }
+                    return is;
+                };
+            }
+
             @Override
             public void close() {
             }
@@ -24,9 +24,11 @@ import android.webkit.MimeTypeMap;
 
 import androidx.annotation.NonNull;
 
+import com.davemorrissey.labs.subscaleview.provider.InputProvider;
 import com.hippo.image.Image;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -257,6 +259,11 @@ class RawFile extends UniFile {
                 return src;
             }
 
+            @Override
+            public InputProvider getProvider() {
+                return () -> new FileInputStream(mFile);
+            }
+
             @Override
             public void close() {
 
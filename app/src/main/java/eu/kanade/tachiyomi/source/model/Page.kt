@@ -25,6 +25,9 @@ open class Page(val index: Int)  {
         QUEUE,
         LOAD_PAGE,
         DOWNLOAD_IMAGE,
+
+        // A downsampled copy is shown while the page is decoded again
+        PREVIEW,
         READY,
         ERROR,
     }
@@ -86,6 +86,7 @@ import eu.kanade.tachiyomi.ui.reader.setting.ReaderSettingsSheet
 import eu.kanade.tachiyomi.ui.reader.setting.ReadingModeType
 import eu.kanade.tachiyomi.ui.reader.viewer.BaseViewer
 import eu.kanade.tachiyomi.ui.reader.viewer.pager.R2LPagerViewer
+import eu.kanade.tachiyomi.ui.reader.viewer.webtoon.WebtoonViewer
 import eu.kanade.tachiyomi.util.lang.launchIO
 import eu.kanade.tachiyomi.util.lang.withUIContext
 import eu.kanade.tachiyomi.util.system.applySystemAnimatorScale
@@ -340,6 +341,7 @@ class ReaderActivity : EhActivity() {
         binding.actionReadingMode.setImageResource(viewerMode.iconRes)
         viewer?.destroy()
         viewer = ReadingModeType.toViewer(readerPreferences.defaultReadingMode().get(), this)
+        Image.preferHardwareBitmap = viewer !is WebtoonViewer
         binding.pageSlider.isRTL = viewer is R2LPagerViewer
         updateViewerInset(readerPreferences.fullscreen().get())
         binding.viewerContainer.removeAllViews()
@@ -872,6 +874,7 @@ class ReaderActivity : EhActivity() {
 
         mCurrentIndex = page.index
         mGalleryProvider?.putStartPage(mCurrentIndex)
+        mGalleryProvider?.onPageSelected(mCurrentIndex)
     }
 
     /**
@@ -0,0 +1,243 @@
+package eu.kanade.tachiyomi.ui.reader.loader
+
+import android.content.ComponentCallbacks2
+import android.graphics.Bitmap
+import android.util.Log
+import androidx.collection.LruCache
+import com.hippo.image.BitmapPool
+import com.hippo.image.Image
+import com.hippo.yorozuya.MathUtils
+import com.hippo.yorozuya.OSUtils
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import java.util.IdentityHashMap
+
+/**
+ * Decoded pages of every [PageLoader] in the process, so a reader recreated or reopened on the
+ * same gallery shows them without decoding again.
+ *
+ * Pages are counted by the loaders showing them and never recycled while referenced. Pages no
+ * loader references are kept least recently used first, within what the budget leaves beside
+ * the referenced ones. Evicted pages leave a downsampled copy in a second tier, shown while the
+ * page is decoded again. Unreferenced pages are dropped on [onTrimMemory].
+ *
+ * A page decoded again while referenced, as retries do, replaces the referenced one. The
+ * replaced image is recycled once its last reference is released.
+ */
+object ImageCache {
+    private const val TAG = "ImageCache"
+    private const val MAX_CACHE_SIZE = 512L * 1024 * 1024
+    private const val MIN_CACHE_SIZE = 128L * 1024 * 1024
+    private const val PREVIEW_CACHE_RATIO = 8
+
+    // A quarter of the screen, sharp enough to read while the page decodes
+    private val PREVIEW_PIXELS = Image.screenWidth * Image.screenHeight / 4
+
+    /**
+     * @param source the gallery, by gid or archive uri
+     *
+     * The sample size is left out, every page of the process is decoded for the same screen.
+     */
+    data class Key(val source: String, val index: Int)
+
+    private class Entry(val key: Key, val image: Image) {
+        var refs = 1
+    }
+
+    val maxSize = MathUtils.clamp(OSUtils.getTotalMemory() / 16, MIN_CACHE_SIZE, MAX_CACHE_SIZE).toInt()
+
+    private val mActive = hashMapOf<Key, Entry>()
+    private var mActiveBytes = 0
+
+    // Replaced images still referenced, counted in mActiveBytes until released
+    private val mReplaced = IdentityHashMap<Image, Entry>()
+
+    // Off while trimming, pages dropped then aren't going to be read soon
+    private var mKeepPreviews = true
+
+    private val mPreviews = object : LruCache<Key, Bitmap>(maxSize / PREVIEW_CACHE_RATIO) {
+        override fun sizeOf(key: Key, value: Bitmap) = value.allocationByteCount
+
+        override fun entryRemoved(evicted: Boolean, key: Key, oldValue: Bitmap, newValue: Bitmap?) {
+            // Bitmaps taken out are displayed, only evicted ones are free
+            if (evicted) BitmapPool.put(oldValue)
+        }
+    }
+
+    private val mIdle = object : LruCache<Key, Image>(maxSize) {
+        override fun sizeOf(key: Key, value: Image) = value.size
+
+        override fun entryRemoved(evicted: Boolean, key: Key, oldValue: Image, newValue: Image?) {
+            // Removed ones are taken by a loader
+            if (!evicted) return
+            if (mKeepPreviews) keepPreview(key, oldValue) else oldValue.recycle()
+        }
+    }
+
+    // Evictions happen on the thread binding pages, usually the main one, and a preview may read
+    // a hardware bitmap back, so previews are made one at a time off it
+    private val mPreviewScope = CoroutineScope(Dispatchers.IO.limitedParallelism(1))
+
+    // Bumped when every page is dropped, previews made from before are stale
+    private var mGeneration = 0
+
+    // Lookups of requested pages in each tier
+    private var mHits = 0
+    private var mMisses = 0
+    private var mPreviewHits = 0
+    private var mPreviewMisses = 0
+
+    /**
+     * Take a reference to page [key], null if it isn't decoded
+     */
+    @Synchronized
+    fun acquire(key: Key): Image? {
+        mActive[key]?.let {
+            it.refs++
+            mHits++
+            return it.image
+        }
+        val image = mIdle.remove(key)
+        if (image == null) {
+            mMisses++
+            return null
+        }
+        mHits++
+        mActive[key] = Entry(key, image)
+        mActiveBytes += image.size
+        trim()
+        return image
+    }
+
+    /**
+     * Add [image] decoded for page [key] with a reference taken, replacing the page decoded before
+     */
+    @Synchronized
+    fun put(key: Key, image: Image): Image {
+        mActive[key]?.let {
+            if (it.image === image) {
+                it.refs++
+                return image
+            }
+            // Its holders release it to drop it
+            mReplaced[it.image] = it
+        }
+        mIdle.remove(key)?.recycle()
+        mPreviews.remove(key)?.let { BitmapPool.put(it) }
+        mActive[key] = Entry(key, image)
+        mActiveBytes += image.size
+        trim()
+        return image
+    }
+
+    /**
+     * Drop a reference to [image] of page [key] taken by [acquire] or [put]
+     */
+    @Synchronized
+    fun release(key: Key, image: Image) {
+        val entry = mActive[key]
+        if (entry == null || entry.image !== image) {
+            val replaced = mReplaced[image]
+            if (replaced != null) {
+                if (--replaced.refs > 0) return
+                mReplaced.remove(image)
+                mActiveBytes -= image.size
+            }
+            // Replaced, or dropped by clear() while referenced
+            image.recycle()
+            return
+        }
+        if (--entry.refs > 0) return
+        mActive.remove(key)
+        mActiveBytes -= image.size
+        mIdle.put(key, image)
+        trim()
+    }
+
+    @Synchronized
+    operator fun contains(key: Key): Boolean {
+        return key in mActive || mIdle[key] != null
+    }
+
+    /**
+     * Take the downsampled copy of page [key] out of the second tier, it's displayed from now on
+     */
+    @Synchronized
+    fun takePreview(key: Key): Image? {
+        val bitmap = mPreviews.remove(key)
+        if (bitmap != null) mPreviewHits++ else mPreviewMisses++
+        return bitmap?.let { Image.preview(it) }
+    }
+
+    /**
+     * Drop every page of [source], referenced ones are recycled once released
+     */
+    @Synchronized
+    fun clear(source: String) {
+        // Previews in the making can't tell their source, drop them all
+        mGeneration++
+        mIdle.snapshot().keys.filter { it.source == source }.forEach { mIdle.remove(it)?.recycle() }
+        mPreviews.snapshot().keys.filter { it.source == source }.forEach { key ->
+            mPreviews.remove(key)?.let { BitmapPool.put(it) }
+        }
+        mActive.keys.filter { it.source == source }.forEach { key ->
+            mActiveBytes -= mActive.remove(key)!!.image.size
+        }
+        mReplaced.values.filter { it.key.source == source }.forEach {
+            mReplaced.remove(it.image)
+            mActiveBytes -= it.image.size
+        }
+    }
+
+    @Synchronized
+    fun onTrimMemory(level: Int) {
+        when {
+            level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> {
+                mGeneration++
+                mKeepPreviews = false
+                mIdle.evictAll()
+                mKeepPreviews = true
+                mPreviews.evictAll()
+                BitmapPool.clear()
+            }
+
+            level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> {
+                mKeepPreviews = false
+                mIdle.trimToSize(mIdle.size() / 2)
+                mKeepPreviews = true
+                mPreviews.trimToSize(mPreviews.size() / 2)
+            }
+        }
+        Log.d(TAG, "Trim memory $level, $this")
+    }
+
+    private fun keepPreview(key: Key, image: Image) {
+        val generation = mGeneration
+        mPreviewScope.launch {
+            val preview = runCatching { image.createPreview(PREVIEW_PIXELS) }
+                .onFailure { Log.e(TAG, "Can't keep preview of $key", it) }
+                .getOrNull()
+            image.recycle()
+            preview ?: return@launch
+            synchronized(this@ImageCache) {
+                // Decoded again meanwhile, or dropped
+                if (generation == mGeneration && key !in mActive && mIdle[key] == null) {
+                    mPreviews.put(key, preview)
+                } else {
+                    BitmapPool.put(preview)
+                }
+            }
+        }
+    }
+
+    // Referenced pages take their share of the budget first
+    private fun trim() {
+        mIdle.trimToSize((maxSize - mActiveBytes).coerceAtLeast(0))
+    }
+
+    @Synchronized
+    override fun toString() = "${mActive.size} referenced pages, $mActiveBytes bytes, " +
+        "${mIdle.size()} idle bytes, decoded hits $mHits, misses $mMisses, " +
+        "preview hits $mPreviewHits, misses $mPreviewMisses, ${mPreviews.size()} preview bytes"
+}
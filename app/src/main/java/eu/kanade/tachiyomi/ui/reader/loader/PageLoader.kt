@@ -1,22 +1,30 @@
 package eu.kanade.tachiyomi.ui.reader.loader
 
+import android.util.Log
 import androidx.annotation.CallSuper
-import androidx.collection.LruCache
 import com.hippo.image.Image
 import com.hippo.yorozuya.MathUtils
-import com.hippo.yorozuya.OSUtils
 import eu.kanade.tachiyomi.source.model.Page
 import eu.kanade.tachiyomi.ui.reader.model.ReaderPage
 
 abstract class PageLoader {
 
-    private val mImageCache = ImageCache()
     val mPages by lazy {
         check(size > 0)
         (0 until size).map { ReaderPage(it) }
     }
 
     private val mPreloads = MathUtils.clamp(com.hippo.ehviewer.Settings.preloadImage, 0, 100)
+    private val mPlanner = PreloadPlanner(mPreloads)
+
+    // Moving average of decoded image bytes, to tell how many pages the image cache holds
+    @Volatile
+    private var mAverageImageSize = 0
+
+    /**
+     * Identity of the gallery in [ImageCache], the gid or the archive uri
+     */
+    protected abstract val cacheKey: String
 
     abstract suspend fun awaitReady(): Boolean
     abstract val isReady: Boolean
@@ -25,33 +33,66 @@ abstract class PageLoader {
 
     @CallSuper
     open fun stop() {
-        mImageCache.evictAll()
+        // Decoded pages stay in ImageCache for the next reader of this gallery
+        releaseImages()
+        Log.d(TAG, "Stop, ${Image.stats}, preload $mPlanner, cache $ImageCache")
     }
 
     fun restart() {
-        mImageCache.evictAll()
+        releaseImages()
+        ImageCache.clear(cacheKey)
+    }
+
+    private fun releaseImages() {
+        if (size > 0) mPages.indices.forEach { releaseImage(it) }
+    }
+
+    // Drop the page's reference to its image, previews aren't referenced
+    private fun releaseImage(index: Int) {
+        // Recycled views pass NO_POSITION
+        if (index !in mPages.indices) return
+        val page = mPages[index]
+        val image = synchronized(page) { page.image?.also { page.image = null } } ?: return
+        if (!image.isPreview) ImageCache.release(ImageCache.Key(cacheKey, index), image)
+    }
+
+    // The page holds one reference to image from now on, taken by the caller
+    private fun holdImage(index: Int, image: Image) {
+        val page = mPages[index]
+        val old = synchronized(page) { page.image.also { page.image = image } }
+        if (old != null && !old.isPreview) ImageCache.release(ImageCache.Key(cacheKey, index), old)
     }
 
     abstract val size: Int
 
     fun request(index: Int) {
-        val image = mImageCache[index]
+        val image = ImageCache.acquire(ImageCache.Key(cacheKey, index))
         if (image != null) {
-            notifyPageSucceed(index, image)
+            holdImage(index, image)
+            mPages[index].status.value = Page.State.READY
         } else {
-            notifyPageWait(index)
+            // Show what was kept of the page while it is decoded again
+            val preview = ImageCache.takePreview(ImageCache.Key(cacheKey, index))
+            if (preview != null) notifyPagePreview(index, preview) else notifyPageWait(index)
             onRequest(index)
         }
+    }
+
+    /**
+     * The viewer shows page [index], called as the reader flips or scrolls, and the only place
+     * preloads are planned. Binding pages around it in [request] doesn't plan again, so the
+     * preload isn't cancelled and relaunched for each page bound.
+     */
+    fun onPageSelected(index: Int) {
+        mPlanner.onPageSelected(index)
+        preload(index)
+    }
 
-        // val pagesAbsent = (index until (mPreloads + index).coerceAtMost(size())).toMutableList().removeAll(mImageCache.snapshot().keys)
-        // Should we refresh our LruCache ?
-        val pagesAbsent =
-            ((index - 5).coerceAtLeast(0) until (mPreloads + index).coerceAtMost(size)).mapNotNull { it.takeIf { mImageCache[it] == null } }
-        preloadPages(
-            pagesAbsent, (index - 10).coerceAtLeast(0) to (mPreloads + index + 10).coerceAtMost(
-                size
-            )
-        )
+    private fun preload(index: Int) {
+        val average = mAverageImageSize
+        val room = if (average > 0) ImageCache.maxSize / average else Int.MAX_VALUE
+        val plan = mPlanner.plan(index, size, room) { ImageCache.Key(cacheKey, it) !in ImageCache }
+        preloadPages(plan.pages, plan.keep.first to plan.keep.last)
     }
 
     fun retryPage(index: Int) {
@@ -59,6 +100,10 @@ abstract class PageLoader {
         onForceRequest(index)
     }
 
+    /**
+     * @param pages pages to load ahead, in the order they will be needed
+     * @param pair bounds of pages to keep loading, the rest may be cancelled
+     */
     protected abstract fun preloadPages(pages: List<Int>, pair: Pair<Int, Int>)
 
     protected abstract fun onRequest(index: Int)
@@ -67,6 +112,8 @@ abstract class PageLoader {
 
     fun cancelRequest(index: Int) {
         onCancelRequest(index)
+        // Unbound, the next bind requests it again
+        releaseImage(index)
     }
 
     protected abstract fun onCancelRequest(index: Int)
@@ -75,15 +122,28 @@ abstract class PageLoader {
         mPages[index].status.value = Page.State.QUEUE
     }
 
+    private fun notifyPagePreview(index: Int, preview: Image) {
+        holdImage(index, preview)
+        mPages[index].status.value = Page.State.PREVIEW
+    }
+
     fun notifyPagePercent(index: Int, percent: Float) {
         mPages[index].status.compareAndSet(Page.State.QUEUE, Page.State.DOWNLOAD_IMAGE)
         mPages[index].progress = (percent * 100).toInt()
     }
 
+    /**
+     * Page [index] is fetched, ready to be decoded
+     */
+    fun notifyPageFetched(index: Int) {
+        mPlanner.onPageFetched(index)
+    }
+
     fun notifyPageSucceed(index: Int, image: Image) {
-        if (mImageCache[index] != image)
-            mImageCache.add(index, image)
-        mPages[index].image = image
+        mPlanner.onPageFetched(index)
+        val average = mAverageImageSize
+        mAverageImageSize = if (average == 0) image.size else average + (image.size - average) / 4
+        holdImage(index, ImageCache.put(ImageCache.Key(cacheKey, index), image))
         mPages[index].status.value = Page.State.READY
     }
 
@@ -92,28 +152,7 @@ abstract class PageLoader {
         mPages[index].status.value = Page.State.ERROR
     }
 
-    private class ImageCache : LruCache<Int, Image>(
-        MathUtils.clamp(
-            OSUtils.getTotalMemory() / 16,
-            MIN_CACHE_SIZE,
-            MAX_CACHE_SIZE
-        ).toInt()
-    ) {
-        fun add(key: Int, value: Image) {
-            put(key, value)
-        }
-
-        override fun sizeOf(key: Int, value: Image): Int {
-            return value.size
-        }
-
-        override fun entryRemoved(evicted: Boolean, key: Int, oldValue: Image, newValue: Image?) {
-            oldValue.recycle()
-        }
-
-        companion object {
-            private const val MAX_CACHE_SIZE = (512 * 1024 * 1024).toLong()
-            private const val MIN_CACHE_SIZE = (128 * 1024 * 1024).toLong()
-        }
+    companion object {
+        private const val TAG = "PageLoader"
     }
 }
@@ -0,0 +1,119 @@
+package eu.kanade.tachiyomi.ui.reader.loader
+
+import android.os.SystemClock
+import kotlin.math.abs
+import kotlin.math.ceil
+
+/**
+ * Plans the pages to preload around the page being read.
+ *
+ * Reading direction and speed are learned from page selections, fetch latency from pages
+ * reported fetched. The window ahead covers the pages read while one page is fetched, never
+ * less than the preload setting and never more than [plan] is given room for. Pages are
+ * planned in the order they will be needed: the current one, ahead by distance, then behind.
+ */
+class PreloadPlanner(private val minAhead: Int) {
+    // Last selected page, -1 before the first selection
+    private var current = -1
+
+    // 1 reading forward, -1 reading backward
+    private var direction = 1
+
+    // Selections in a row in the reading direction, capped at CONFIDENT_STREAK
+    private var streak = 0
+    private var lastSelectedAt = 0L
+
+    // Moving averages of pages read per second and milliseconds to fetch a page
+    private var pagesPerSecond = 0.0
+    private var fetchMillis = 0.0
+    private val mPlannedAt = hashMapOf<Int, Long>()
+
+    class Plan(val pages: List<Int>, val keep: IntRange)
+
+    @Synchronized
+    fun onPageSelected(index: Int) {
+        val now = SystemClock.elapsedRealtime()
+        val last = current
+        current = index
+        if (last < 0 || index == last) {
+            lastSelectedAt = now
+            return
+        }
+        val delta = index - last
+        if (abs(delta) > MAX_STEP) {
+            // Jumped by slider or chapter list, speed before it says nothing
+            pagesPerSecond = 0.0
+            streak = 0
+        } else {
+            val elapsed = (now - lastSelectedAt).coerceIn(MIN_SELECT_INTERVAL_MILLIS, MAX_SELECT_INTERVAL_MILLIS)
+            val speed = abs(delta) * 1000.0 / elapsed
+            pagesPerSecond += (speed - pagesPerSecond) * EWMA_WEIGHT
+            val sign = if (delta > 0) 1 else -1
+            if (sign == direction) {
+                streak = (streak + 1).coerceAtMost(CONFIDENT_STREAK)
+            } else if (--streak <= 0) {
+                // Turned around for more than one page
+                direction = sign
+                streak = 1
+            }
+        }
+        lastSelectedAt = now
+    }
+
+    /**
+     * Page [index] is fetched, latency is measured from when it was first planned
+     */
+    @Synchronized
+    fun onPageFetched(index: Int) {
+        val plannedAt = mPlannedAt.remove(index) ?: return
+        val millis = (SystemClock.elapsedRealtime() - plannedAt).toDouble()
+        fetchMillis = if (fetchMillis == 0.0) millis else fetchMillis + (millis - fetchMillis) * EWMA_WEIGHT
+    }
+
+    /**
+     * @param index page to plan around
+     * @param size page count
+     * @param room pages the caches have room for
+     * @param isAbsent whether a page still has to be loaded
+     */
+    @Synchronized
+    fun plan(index: Int, size: Int, room: Int, isAbsent: (Int) -> Boolean): Plan {
+        val needed = ceil(pagesPerSecond * fetchMillis / 1000 * LATENCY_MARGIN).toInt()
+        val ahead = needed.coerceAtLeast(minAhead).coerceAtMost(room.coerceAtLeast(minAhead))
+        val behind = if (streak >= CONFIDENT_STREAK) MIN_BEHIND else MAX_BEHIND
+        val pages = ArrayList<Int>(ahead + behind + 1)
+        pages.add(index)
+        (1..ahead).map { index + it * direction }.filterTo(pages) { it in 0 until size }
+        (1..behind).map { index - it * direction }.filterTo(pages) { it in 0 until size }
+
+        val first = pages.min() - KEEP_MARGIN
+        val last = pages.max() + KEEP_MARGIN
+        pages.retainAll(isAbsent)
+
+        val now = SystemClock.elapsedRealtime()
+        pages.forEach { mPlannedAt.putIfAbsent(it, now) }
+        // Pages dropped from the plan are measured again when planned again
+        mPlannedAt.keys.retainAll { it in first..last }
+        return Plan(pages, first.coerceAtLeast(0)..last.coerceAtMost(size - 1))
+    }
+
+    override fun toString() = synchronized(this) {
+        "direction $direction, %.2f pages/s, %.0f ms/page".format(pagesPerSecond, fetchMillis)
+    }
+
+    companion object {
+        private const val EWMA_WEIGHT = 0.3
+        private const val MAX_STEP = 3
+        private const val MIN_SELECT_INTERVAL_MILLIS = 100L
+        private const val MAX_SELECT_INTERVAL_MILLIS = 60000L
+        private const val CONFIDENT_STREAK = 3
+
+        // Keep fetching twice as far as a fetch takes, fetches vary a lot
+        private const val LATENCY_MARGIN = 2
+        private const val MIN_BEHIND = 2
+        private const val MAX_BEHIND = 5
+
+        // Planned pages are kept this far out of the window before being cancelled
+        private const val KEEP_MARGIN = 5
+    }
+}
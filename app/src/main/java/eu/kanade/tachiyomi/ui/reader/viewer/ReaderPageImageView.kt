@@ -18,10 +18,12 @@ import androidx.annotation.StyleRes
 import androidx.appcompat.widget.AppCompatImageView
 import androidx.core.os.postDelayed
 import androidx.core.view.isVisible
+import com.davemorrissey.labs.subscaleview.BandCache
 import com.davemorrissey.labs.subscaleview.ImageSource
 import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView
 import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView.Companion.EASE_OUT_QUAD
 import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView.Companion.SCALE_TYPE_CENTER_INSIDE
+import com.davemorrissey.labs.subscaleview.provider.InputProvider
 import com.github.chrisbanes.photoview.PhotoView
 import eu.kanade.tachiyomi.ui.reader.viewer.webtoon.WebtoonSubsamplingImageView
 import eu.kanade.tachiyomi.util.system.animatorDurationScale
@@ -47,6 +49,10 @@ open class ReaderPageImageView @JvmOverloads constructor(
 
     private var config: Config? = null
 
+    // Rows of this view on screen or about to be, see setViewport
+    private var viewportTop = Int.MIN_VALUE
+    private var viewportBottom = Int.MAX_VALUE
+
     var onImageLoaded: (() -> Unit)? = null
     var onImageLoadError: (() -> Unit)? = null
     var onScaleChanged: ((newScale: Float) -> Unit)? = null
@@ -120,17 +126,31 @@ open class ReaderPageImageView @JvmOverloads constructor(
         }
     }
 
-    fun setImage(drawable: Drawable, config: Config) {
+    /**
+     * @param provider source of a large image, its regions are decoded as they are shown and
+     * [drawable] is only shown if they can't be
+     */
+    fun setImage(drawable: Drawable, config: Config, provider: InputProvider? = null) {
         this.config = config
         if (drawable is Animatable) {
             prepareAnimatedImageView()
             setAnimatedImage(drawable, config)
         } else {
             prepareNonAnimatedImageView()
-            setNonAnimatedImage(drawable, config)
+            setNonAnimatedImage(drawable, config, provider)
         }
     }
 
+    /**
+     * Set the rows of this view on screen when it's scrolled by a parent, with the margins to
+     * decode ahead of the scroll. Images decoded by band only keep the bands meeting them.
+     */
+    fun setViewport(top: Int, bottom: Int) {
+        viewportTop = top
+        viewportBottom = bottom
+        (pageView as? SubsamplingScaleImageView)?.setViewport(top, bottom)
+    }
+
     fun recycle() = pageView?.let {
         when (it) {
             is SubsamplingScaleImageView -> it.recycle()
@@ -236,11 +256,15 @@ open class ReaderPageImageView @JvmOverloads constructor(
     private fun setNonAnimatedImage(
         image: Drawable,
         config: Config,
-    ) = (pageView as? SubsamplingScaleImageView)?.apply {
+        provider: InputProvider?,
+    ): SubsamplingScaleImageView? = (pageView as? SubsamplingScaleImageView)?.apply {
         setDoubleTapZoomDuration(config.zoomDuration.getSystemScaledDuration())
         setMinimumScaleType(config.minimumScaleType)
         setMinimumDpi(1) // Just so that very small image will be fit for initial load
         setCropBorders(config.cropBorders)
+        val bandHeight = if (config.bandCache != null) resources.displayMetrics.heightPixels / BANDS_PER_SCREEN else 0
+        setBandDecoding(bandHeight, config.bandCache)
+        setViewport(viewportTop, viewportBottom)
         setOnImageEventListener(
             object : SubsamplingScaleImageView.DefaultOnImageEventListener() {
                 override fun onReady() {
@@ -250,13 +274,22 @@ open class ReaderPageImageView @JvmOverloads constructor(
                 }
 
                 override fun onImageLoadError(e: Exception) {
-                    this@ReaderPageImageView.onImageLoadError()
+                    if (provider != null) {
+                        // Format not readable by region, fall back to the preview
+                        setNonAnimatedImage(image, config, null)
+                    } else {
+                        this@ReaderPageImageView.onImageLoadError()
+                    }
                 }
             },
         )
 
-        val bitmap = (image as BitmapDrawable).bitmap
-        setImage(ImageSource.cachedBitmap(bitmap))
+        if (provider != null) {
+            setImage(ImageSource.provider(provider))
+        } else {
+            val bitmap = (image as BitmapDrawable).bitmap
+            setImage(ImageSource.cachedBitmap(bitmap))
+        }
         isVisible = true
     }
 
@@ -319,6 +352,9 @@ open class ReaderPageImageView @JvmOverloads constructor(
 
     /**
      * All of the config except [zoomDuration] will only be used for non-animated image.
+     *
+     * @param bandCache decode images read by region in bands, only those in the viewport, and
+     * keep the bands scrolled away in it
      */
     data class Config(
         val zoomDuration: Int,
@@ -326,6 +362,7 @@ open class ReaderPageImageView @JvmOverloads constructor(
         val cropBorders: Boolean = false,
         val zoomStartPosition: ZoomStartPosition = ZoomStartPosition.CENTER,
         val landscapeZoom: Boolean = false,
+        val bandCache: BandCache? = null,
     )
 
     enum class ZoomStartPosition {
@@ -334,3 +371,6 @@ open class ReaderPageImageView @JvmOverloads constructor(
 }
 
 private const val MAX_ZOOM_SCALE = 5F
+
+// Bands are half a screen tall, a screen meets two or three of them
+private const val BANDS_PER_SCREEN = 2
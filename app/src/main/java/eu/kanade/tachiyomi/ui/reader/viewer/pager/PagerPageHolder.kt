@@ -8,6 +8,7 @@ import android.view.Gravity
 import android.view.LayoutInflater
 import androidx.core.view.isVisible
 import androidx.core.view.updateLayoutParams
+import com.davemorrissey.labs.subscaleview.provider.InputProvider
 import com.hippo.ehviewer.databinding.ReaderErrorBinding
 import eu.kanade.tachiyomi.source.model.Page
 import eu.kanade.tachiyomi.ui.reader.model.ReaderPage
@@ -101,8 +102,9 @@ class PagerPageHolder(
                 launchProgressJob()
                 setDownloading()
             }
+            Page.State.PREVIEW -> page.image?.mObtainedDrawable?.let { setImage(it, null) }
             Page.State.READY -> {
-                page.image?.mObtainedDrawable?.let { setImage(it) }
+                page.image?.let { image -> image.mObtainedDrawable?.let { setImage(it, image.regionProvider) } }
                 cancelProgressJob()
             }
             Page.State.ERROR -> {
@@ -152,7 +154,7 @@ class PagerPageHolder(
     /**
      * Called when the page is ready.
      */
-    private fun setImage(drawable: Drawable) {
+    private fun setImage(drawable: Drawable, provider: InputProvider?) {
         progressIndicator.setProgress(0)
         errorLayout?.root?.isVisible = false
         setImage(drawable,
@@ -162,7 +164,7 @@ class PagerPageHolder(
                 cropBorders = viewer.config.imageCropBorders,
                 zoomStartPosition = viewer.config.imageZoomType,
                 landscapeZoom = viewer.config.landscapeZoom,
-            ),)
+            ), provider,)
         if (drawable !is Animatable)
             pageBackground = background
     }
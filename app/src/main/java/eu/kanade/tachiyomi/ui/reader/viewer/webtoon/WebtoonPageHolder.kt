@@ -11,6 +11,7 @@ import android.widget.FrameLayout
 import androidx.core.view.isVisible
 import androidx.core.view.updateLayoutParams
 import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView
+import com.davemorrissey.labs.subscaleview.provider.InputProvider
 import com.hippo.ehviewer.databinding.ReaderErrorBinding
 import eu.kanade.tachiyomi.source.model.Page
 import eu.kanade.tachiyomi.ui.reader.model.ReaderPage
@@ -107,6 +108,13 @@ class WebtoonPageHolder(
         }
     }
 
+    /**
+     * Sets the rows of the page on screen or about to be, in its own coordinates.
+     */
+    fun setViewport(top: Int, bottom: Int) {
+        frame.setViewport(top, bottom)
+    }
+
     /**
      * Called when the view is recycled and added to the view pool.
      */
@@ -145,8 +153,9 @@ class WebtoonPageHolder(
                 launchProgressJob()
                 setDownloading()
             }
+            Page.State.PREVIEW -> page?.image?.mObtainedDrawable?.let { setImage(it, null) }
             Page.State.READY -> {
-                page?.image?.mObtainedDrawable?.let { setImage(it) }
+                page?.image?.let { image -> image.mObtainedDrawable?.let { setImage(it, image.regionProvider) } }
                 cancelProgressJob()
             }
             Page.State.ERROR -> {
@@ -194,7 +203,7 @@ class WebtoonPageHolder(
     /**
      * Called when the page is ready.
      */
-    private fun setImage(drawable: Drawable) {
+    private fun setImage(drawable: Drawable, provider: InputProvider?) {
         progressIndicator.setProgress(0)
         removeErrorLayout()
         frame.setImage(drawable,
@@ -202,7 +211,8 @@ class WebtoonPageHolder(
             zoomDuration = viewer.config.doubleTapAnimDuration,
             minimumScaleType = SubsamplingScaleImageView.SCALE_TYPE_FIT_WIDTH,
             cropBorders = viewer.config.imageCropBorders,
-        ),)
+            bandCache = viewer.bandCache,
+        ), provider,)
     }
 
     /**
@@ -3,6 +3,7 @@ package eu.kanade.tachiyomi.ui.reader.viewer.webtoon
 import android.animation.AnimatorSet
 import android.animation.ValueAnimator
 import android.content.Context
+import android.os.SystemClock
 import android.util.AttributeSet
 import android.view.HapticFeedbackConstants
 import android.view.MotionEvent
@@ -34,12 +35,33 @@ class WebtoonRecyclerView @JvmOverloads constructor(
     private var lastVisibleItemPosition = 0
     private var currentScale = DEFAULT_RATE
 
+    // Scroll velocity in pixels per second, positive scrolling down
+    private var scrollVelocity = 0F
+    private var lastScrolledAt = 0L
+
     private val listener = GestureListener()
     private val detector = Detector()
 
     var tapListener: ((MotionEvent) -> Unit)? = null
     var longTapListener: ((MotionEvent) -> Boolean)? = null
 
+    /**
+     * Called when the children move in the viewport, by scroll or layout.
+     */
+    var viewportListener: (() -> Unit)? = null
+
+    /**
+     * Rows above the viewport to keep decoded, more when scrolling up the faster it goes.
+     */
+    val decodeMarginAbove: Int
+        get() = decodeMargin(-scrollVelocity)
+
+    /**
+     * Rows below the viewport to keep decoded, more when scrolling down the faster it goes.
+     */
+    val decodeMarginBelow: Int
+        get() = decodeMargin(scrollVelocity)
+
     init {
         isVerticalScrollBarEnabled = false
         isHorizontalScrollBarEnabled = false
@@ -60,16 +82,40 @@ class WebtoonRecyclerView @JvmOverloads constructor(
         return super.onTouchEvent(e)
     }
 
+    override fun onLayout(changed: Boolean, l: Int, t: Int, r: Int, b: Int) {
+        super.onLayout(changed, l, t, r, b)
+        viewportListener?.invoke()
+    }
+
+    override fun fling(velocityX: Int, velocityY: Int): Boolean {
+        val flung = super.fling(velocityX, velocityY)
+        if (flung) {
+            // The fling starts this fast, scrolls measure it as it slows down
+            scrollVelocity = velocityY.toFloat()
+            lastScrolledAt = SystemClock.uptimeMillis()
+        }
+        return flung
+    }
+
     override fun onScrolled(dx: Int, dy: Int) {
         super.onScrolled(dx, dy)
         val layoutManager = layoutManager
         lastVisibleItemPosition =
             (layoutManager as LinearLayoutManager).findLastVisibleItemPosition()
         firstVisibleItemPosition = layoutManager.findFirstVisibleItemPosition()
+
+        val now = SystemClock.uptimeMillis()
+        val elapsed = now - lastScrolledAt
+        if (dy != 0 && elapsed in 1..MAX_SCROLL_INTERVAL_MILLIS) {
+            scrollVelocity += (dy * 1000F / elapsed - scrollVelocity) * VELOCITY_EWMA_WEIGHT
+        }
+        lastScrolledAt = now
+        viewportListener?.invoke()
     }
 
     override fun onScrollStateChanged(state: Int) {
         super.onScrollStateChanged(state)
+        if (state == SCROLL_STATE_IDLE) scrollVelocity = 0F
         val layoutManager = layoutManager
         val visibleItemCount = layoutManager?.childCount ?: 0
         val totalItemCount = layoutManager?.itemCount ?: 0
@@ -77,6 +123,14 @@ class WebtoonRecyclerView @JvmOverloads constructor(
         atFirstPosition = firstVisibleItemPosition == 0
     }
 
+    /**
+     * Half a screen on both sides, and ahead of the scroll what it covers in [DECODE_AHEAD_MILLIS]
+     */
+    private fun decodeMargin(velocity: Float): Int {
+        val ahead = (velocity * DECODE_AHEAD_MILLIS / 1000).toInt()
+        return ahead.coerceIn(height / 2, height * MAX_DECODE_AHEAD_SCREENS)
+    }
+
     private fun getPositionX(positionX: Float): Float {
         if (currentScale < 1) {
             return 0f
@@ -325,3 +379,9 @@ private const val ANIMATOR_DURATION_TIME = 200
 private const val MIN_RATE = 0.5f
 private const val DEFAULT_RATE = 1f
 private const val MAX_SCALE_RATE = 3f
+
+// Decode ahead what the scroll covers while a band decodes a few times over
+private const val DECODE_AHEAD_MILLIS = 500
+private const val MAX_DECODE_AHEAD_SCREENS = 4
+private const val MAX_SCROLL_INTERVAL_MILLIS = 100L
+private const val VELOCITY_EWMA_WEIGHT = 0.3F
@@ -11,6 +11,7 @@ import androidx.core.view.isGone
 import androidx.core.view.isVisible
 import androidx.recyclerview.widget.RecyclerView
 import androidx.recyclerview.widget.WebtoonLayoutManager
+import com.davemorrissey.labs.subscaleview.BandCache
 import eu.kanade.tachiyomi.ui.reader.ReaderActivity
 import eu.kanade.tachiyomi.ui.reader.loader.PageLoader
 import eu.kanade.tachiyomi.ui.reader.model.ReaderPage
@@ -67,6 +68,13 @@ class WebtoonViewer(val activity: ReaderActivity, val isContinuous: Boolean = tr
 
     private var longPressed = false
 
+    /**
+     * Bands of the pages scrolled away, taken back when scrolled to again.
+     */
+    val bandCache = BandCache(
+        activity.resources.displayMetrics.run { widthPixels * heightPixels * 4 * BAND_CACHE_SCREENS },
+    )
+
     init {
         recycler.isVisible = false // Don't let the recycler layout yet
         recycler.layoutParams = ViewGroup.LayoutParams(MATCH_PARENT, MATCH_PARENT)
@@ -85,6 +93,7 @@ class WebtoonViewer(val activity: ReaderActivity, val isContinuous: Boolean = tr
                 }
             },
         )
+        recycler.viewportListener = { updateViewports() }
         recycler.tapListener = { event ->
             val pos = PointF(event.rawX / recycler.width, event.rawY / recycler.height)
             val navigator = config.navigator
@@ -140,6 +149,8 @@ class WebtoonViewer(val activity: ReaderActivity, val isContinuous: Boolean = tr
     override fun destroy() {
         super.destroy()
         scope.cancel()
+        logcat { "Destroy, band cache $bandCache" }
+        bandCache.clear()
     }
 
     /**
@@ -186,6 +197,20 @@ class WebtoonViewer(val activity: ReaderActivity, val isContinuous: Boolean = tr
         }
     }
 
+    /**
+     * Tells the page holders which of their rows are on screen, with the margins the recycler
+     * decodes ahead of its scroll.
+     */
+    private fun updateViewports() {
+        val above = recycler.decodeMarginAbove
+        val below = recycler.decodeMarginBelow
+        for (i in 0 until recycler.childCount) {
+            val child = recycler.getChildAt(i)
+            val holder = recycler.getChildViewHolder(child) as? WebtoonPageHolder ?: continue
+            holder.setViewport(-child.top - above, recycler.height - child.top + below)
+        }
+    }
+
     /**
      * Scrolls up by [scrollDistance].
      */
@@ -271,3 +296,6 @@ class WebtoonViewer(val activity: ReaderActivity, val isContinuous: Boolean = tr
         adapter.notifyItemRangeChanged(positionStart, positionEnd - positionStart + 1)
     }
 }
+
+// Bands kept beside the ones shown, in screens of ARGB_8888 pixels
+private const val BAND_CACHE_SCREENS = 3
@@ -0,0 +1,122 @@
+package com.hippo.ehviewer.spider
+
+import com.hippo.ehviewer.spider.SpiderQueen.Companion.STATE_DOWNLOADING
+import com.hippo.ehviewer.spider.SpiderQueen.Companion.STATE_FAILED
+import com.hippo.ehviewer.spider.SpiderQueen.Companion.STATE_FINISHED
+import com.hippo.ehviewer.spider.SpiderQueen.Companion.STATE_NONE
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+class PageStatesTest {
+    private val states = intArrayOf(STATE_NONE, STATE_DOWNLOADING, STATE_FINISHED, STATE_FAILED)
+
+    @Test
+    fun countersMatchStatesAfterConcurrentTransitionsAndResets() {
+        val pages = PageStates(PAGES)
+        val overCounted = AtomicBoolean()
+        runThreads(THREADS) { worker ->
+            val random = ThreadLocalRandom.current()
+            repeat(OPERATIONS) {
+                if (worker == 0 && it % 1000 == 0) {
+                    // Entering download mode
+                    for (i in 0 until pages.size) {
+                        pages.update(i) { state -> if (state == STATE_DOWNLOADING) state else STATE_NONE }
+                    }
+                } else {
+                    pages.set(random.nextInt(PAGES), states[random.nextInt(states.size)])
+                }
+                if (pages.downloaded > PAGES || pages.finished > PAGES) overCounted.set(true)
+            }
+        }
+        val downloaded = (0 until PAGES).count { pages[it] == STATE_FINISHED || pages[it] == STATE_FAILED }
+        val finished = (0 until PAGES).count { pages[it] == STATE_FINISHED }
+        assertEquals(downloaded, pages.downloaded)
+        assertEquals(finished, pages.finished)
+        assertTrue(!overCounted.get())
+    }
+
+    @Test
+    fun allDownloadedOnlyWhenEveryPageIsDone() {
+        val pages = PageStates(PAGES)
+        runThreads(THREADS) { worker ->
+            for (i in worker until PAGES step THREADS) {
+                pages.set(i, STATE_DOWNLOADING)
+                if (pages.downloaded == PAGES) throw AssertionError("All downloaded with page $i downloading")
+                pages.set(i, STATE_FINISHED)
+            }
+        }
+        assertEquals(PAGES, pages.downloaded)
+        assertEquals(PAGES, pages.finished)
+    }
+
+    /**
+     * Transitions per millisecond of [PageStates] against the same counting under one monitor,
+     * as SpiderQueen did before. Printed for comparison, not asserted.
+     */
+    @Test
+    fun benchmarkAgainstGlobalLock() {
+        val lockFree = PageStates(PAGES)
+        val locked = LockedPageStates(PAGES)
+        // Warm up both paths before timing
+        repeat(2) {
+            measure { i, state -> lockFree.set(i, state) }
+            measure { i, state -> locked.set(i, state) }
+        }
+        val lockFreeRate = measure { i, state -> lockFree.set(i, state) }
+        val lockedRate = measure { i, state -> locked.set(i, state) }
+        println("PageStates: $lockFreeRate transitions/ms, global lock: $lockedRate transitions/ms, $THREADS threads")
+    }
+
+    private fun measure(transit: (Int, Int) -> Unit): Long {
+        val start = System.nanoTime()
+        runThreads(THREADS) {
+            val random = ThreadLocalRandom.current()
+            repeat(OPERATIONS) { transit(random.nextInt(PAGES), states[random.nextInt(states.size)]) }
+        }
+        val millis = ((System.nanoTime() - start) / 1_000_000).coerceAtLeast(1)
+        return THREADS.toLong() * OPERATIONS / millis
+    }
+
+    private fun runThreads(count: Int, block: (Int) -> Unit) {
+        val start = CountDownLatch(1)
+        var error: Throwable? = null
+        val threads = (0 until count).map {
+            thread {
+                start.await()
+                runCatching { block(it) }.onFailure { e -> synchronized(this) { error = e } }
+            }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+        error?.let { throw it }
+    }
+
+    private class LockedPageStates(size: Int) {
+        private val states = IntArray(size)
+        private var downloaded = 0
+        private var finished = 0
+
+        @Synchronized
+        fun set(index: Int, state: Int) {
+            val old = states[index]
+            states[index] = state
+            if (!isDownloaded(old) && isDownloaded(state)) downloaded++
+            if (isDownloaded(old) && !isDownloaded(state)) downloaded--
+            if (old != STATE_FINISHED && state == STATE_FINISHED) finished++
+            if (old == STATE_FINISHED && state != STATE_FINISHED) finished--
+        }
+
+        private fun isDownloaded(state: Int) = state == STATE_FINISHED || state == STATE_FAILED
+    }
+
+    companion object {
+        private const val PAGES = 500
+        private const val THREADS = 8
+        private const val OPERATIONS = 200_000
+    }
+}